@@ -0,0 +1,89 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Validate sentence checksums.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+    private String[] sentences;
+    private byte[][] bytes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final NmeaCorpus corpus = new NmeaCorpus(60);
+        sentences = corpus.getSentences();
+        bytes = corpus.getBytes();
+    }
+
+    private int next() {
+        final int i = next;
+        next = i + 1 == sentences.length ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public boolean string() {
+        return Nmea.isValid(sentences[next()]);
+    }
+
+    @Benchmark
+    public boolean bytes() {
+        final byte[] s = bytes[next()];
+        int star = s.length - 1;
+        while (star > 0 && s[star] != '*') {
+            star -= 1;
+        }
+        if (star < 1 || star + 2 >= s.length) {
+            return false;
+        }
+        final int sum = Nmea.checksum(s, 1, star);
+        return Nmea.hexValue(s[star + 1]) == (sum >> 4)
+                && Nmea.hexValue(s[star + 2]) == (sum & 0xf);
+    }
+
+    @Benchmark
+    public boolean stringFormat() {
+        // Common implementation: format the checksum, then compare strings.
+        final String s = sentences[next()];
+        final int star = s.lastIndexOf('*');
+        if (star < 1) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 1; i < star; ++i) {
+            sum ^= s.charAt(i);
+        }
+        return String.format("%02X", sum).equals(s.substring(star + 1, star + 3));
+    }
+}
@@ -0,0 +1,278 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal in-process MQTT 3.1.1 broker, standing in for a real broker in
+ * {@link MqttPublisherTest}.
+ * <p>
+ * The broker accepts CONNECT, PUBLISH (QoS 0 and 1) and PINGREQ packets, and
+ * counts them. Published payloads are kept in order. Faults are injected on
+ * demand: pings and publications may be left unanswered (publications may be
+ * acknowledged later, oldest first), and connections may be reset.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class FakeBroker {
+    private static final int CONNECT = 0x10;
+    private static final int PUBLISH = 0x30;
+    private static final int PINGREQ = 0xc0;
+    private static final int DUP = 0x08;
+    private final int port;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final List<String> payloads = new ArrayList<String>();
+    private final List<Unacknowledged> unacknowledged = new ArrayList<Unacknowledged>();
+    private ServerSocket server;
+    private Thread acceptor;
+    private volatile boolean running;
+    private volatile boolean answerPings = true;
+    private volatile boolean acknowledge = true;
+    private volatile long connectionCount;
+    private volatile long pingCount;
+    private volatile long publishCount;
+    private volatile long duplicateCount;
+
+    public FakeBroker(int port) {
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        server = new ServerSocket(port);
+        server.setReuseAddress(true);
+        running = true;
+        acceptor = new Thread("FakeBroker/accept") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ignore) {
+        }
+        reset();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Close all connections.
+     */
+    public void reset() {
+        synchronized (unacknowledged) {
+            unacknowledged.clear();
+        }
+        synchronized (sockets) {
+            for (final Socket s : sockets) {
+                close(s);
+            }
+            sockets.clear();
+        }
+    }
+
+    /**
+     * Answer (or not) to PINGREQ packets, as a broker which stopped
+     * responding.
+     */
+    public void setAnswerPings(boolean answerPings) {
+        this.answerPings = answerPings;
+    }
+
+    /**
+     * Acknowledge (or not) QoS 1 publications.
+     */
+    public void setAcknowledge(boolean acknowledge) {
+        this.acknowledge = acknowledge;
+    }
+
+    /**
+     * Acknowledge the oldest QoS 1 publication left unanswered.
+     */
+    public void acknowledgeOldest() throws IOException {
+        final Unacknowledged u;
+        synchronized (unacknowledged) {
+            if (unacknowledged.isEmpty()) {
+                return;
+            }
+            u = unacknowledged.remove(0);
+        }
+        synchronized (u.out) {
+            u.out.write(new byte[] { 0x40, 2, (byte) (u.id >> 8), (byte) u.id });
+            u.out.flush();
+        }
+    }
+
+    public long getConnectionCount() {
+        return connectionCount;
+    }
+
+    public long getPingCount() {
+        return pingCount;
+    }
+
+    public long getPublishCount() {
+        return publishCount;
+    }
+
+    /**
+     * Get how many publications were received with the DUP flag.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Get received payloads, in order.
+     */
+    public List<String> getPayloads() {
+        synchronized (payloads) {
+            return new ArrayList<String>(payloads);
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            final Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionCount += 1;
+            synchronized (sockets) {
+                sockets.add(s);
+            }
+            final Thread t = new Thread("FakeBroker/connection") {
+                @Override
+                public void run() {
+                    try {
+                        serve(s);
+                    } catch (SocketException ignore) {
+                    } catch (IOException e) {
+                        System.err.println("Broker connection failed: " + e);
+                    } finally {
+                        close(s);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve(Socket s) throws IOException {
+        final DataInputStream in = new DataInputStream(s.getInputStream());
+        final OutputStream out = s.getOutputStream();
+        while (true) {
+            final int type = in.read();
+            if (type < 0) {
+                return;
+            }
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.readUnsignedByte();
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            final byte[] body = new byte[length];
+            in.readFully(body);
+
+            // Publications may be acknowledged from another thread.
+            synchronized (out) {
+                switch (type & 0xf0) {
+                case CONNECT:
+                    out.write(new byte[] { 0x20, 2, 0, 0 });
+                    break;
+                case PUBLISH:
+                    onPublish(type, body, out);
+                    break;
+                case PINGREQ:
+                    pingCount += 1;
+                    if (answerPings) {
+                        out.write(new byte[] { (byte) 0xd0, 0 });
+                    }
+                    break;
+                default:
+                    break;
+                }
+                out.flush();
+            }
+        }
+    }
+
+    private void onPublish(int type, byte[] body, OutputStream out) throws IOException {
+        final int qos = type >> 1 & 3;
+        final int topicLength = (body[0] & 0xff) << 8 | body[1] & 0xff;
+        int i = 2 + topicLength;
+        int id = 0;
+        if (qos != 0) {
+            id = (body[i] & 0xff) << 8 | body[i + 1] & 0xff;
+            i += 2;
+        }
+        publishCount += 1;
+        if ((type & DUP) != 0) {
+            duplicateCount += 1;
+        }
+        synchronized (payloads) {
+            payloads.add(new String(body, i, body.length - i, "US-ASCII"));
+        }
+        if (qos != 0 && acknowledge) {
+            out.write(new byte[] { 0x40, 2, (byte) (id >> 8), (byte) id });
+        } else if (qos != 0) {
+            synchronized (unacknowledged) {
+                unacknowledged.add(new Unacknowledged(out, id));
+            }
+        }
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static final class Unacknowledged {
+        public final OutputStream out;
+        public final int id;
+
+        public Unacknowledged(OutputStream out, int id) {
+            this.out = out;
+            this.id = id;
+        }
+    }
+}
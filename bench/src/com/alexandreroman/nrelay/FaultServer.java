@@ -0,0 +1,358 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fake NMEA server injecting network faults.
+ * <p>
+ * Received sentences are delivered to a {@link Listener} after an optional
+ * latency. Reads may be capped to a given bandwidth: the relay sees TCP
+ * backpressure. Heartbeats are echoed, as {@link RelayHub} does. Faults are
+ * injected on demand:
+ * <ul>
+ * <li>stall: the server stops reading and echoing, as a host which lost
+ * power;</li>
+ * <li>reset: connections are reset;</li>
+ * <li>refuse: the server stops listening, so that connections are refused.</li>
+ * </ul>
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class FaultServer {
+    /**
+     * Interface for receiving sentences.
+     */
+    public interface Listener {
+        /**
+         * This method is called for each received sentence, once its latency
+         * elapsed. Sentence bytes are only valid during this call.
+         * 
+         * @param deliveryTime
+         *            delivery time, from {@link System#nanoTime()}
+         */
+        void onSentence(byte[] data, int length, long deliveryTime);
+    }
+
+    private final int port;
+    private final long latency;
+    private final int bytesPerSecond;
+    private final Listener listener;
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final DelayQueue<Delivery> deliveries = new DelayQueue<Delivery>();
+    private ServerSocket server;
+    private Thread acceptor;
+    private Thread deliverer;
+    private volatile long stalledUntil;
+    private volatile boolean running;
+    private volatile long connectionCount;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param latency
+     *            delay before sentences are delivered, in milliseconds
+     * @param bytesPerSecond
+     *            maximum read rate, or 0 for no limit
+     */
+    public FaultServer(int port, long latency, int bytesPerSecond, Listener listener) {
+        this.port = port;
+        this.latency = latency;
+        this.bytesPerSecond = bytesPerSecond;
+        this.listener = listener;
+    }
+
+    public synchronized void start() throws IOException {
+        running = true;
+        listen();
+        deliverer = new Thread("FaultServer/Deliverer") {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        deliverer.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        closeServer();
+        reset();
+        if (deliverer != null) {
+            deliverer.interrupt();
+            deliverer = null;
+        }
+    }
+
+    /**
+     * Get how many connections were accepted.
+     */
+    public long getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Stop reading and echoing heartbeats for a while. Connections are kept
+     * open.
+     */
+    public void stall(long duration) {
+        stalledUntil = System.currentTimeMillis() + duration;
+    }
+
+    /**
+     * Reset all connections.
+     */
+    public void reset() {
+        final List<Connection> l;
+        synchronized (connections) {
+            l = new ArrayList<Connection>(connections);
+            connections.clear();
+        }
+        for (final Connection c : l) {
+            c.reset();
+        }
+    }
+
+    /**
+     * Refuse connections for a while: existing connections are reset.
+     */
+    public void refuse(final long duration) {
+        synchronized (this) {
+            closeServer();
+        }
+        reset();
+        final Thread t = new Thread("FaultServer/Refuse") {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(duration);
+                    synchronized (FaultServer.this) {
+                        if (running && server == null) {
+                            listen();
+                        }
+                    }
+                } catch (InterruptedException ignore) {
+                } catch (IOException e) {
+                    System.err.println("Cannot listen again: " + e);
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void listen() throws IOException {
+        final ServerSocket s = new ServerSocket();
+        s.setReuseAddress(true);
+        s.bind(new InetSocketAddress("localhost", port));
+        server = s;
+        acceptor = new Thread("FaultServer/Acceptor") {
+            @Override
+            public void run() {
+                accept(s);
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void closeServer() {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException ignore) {
+            }
+            server = null;
+        }
+    }
+
+    private void accept(ServerSocket s) {
+        while (running && !s.isClosed()) {
+            try {
+                final Socket sock = s.accept();
+                final Connection c = new Connection(sock);
+                synchronized (connections) {
+                    connections.add(c);
+                }
+                connectionCount += 1;
+                c.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void deliver() {
+        try {
+            while (running) {
+                final Delivery d = deliveries.take();
+                final long now = System.nanoTime();
+                if (isHeartbeat(d.data, d.length)) {
+                    d.connection.echo(d.data, d.length);
+                } else {
+                    listener.onSentence(d.data, d.length, now);
+                }
+            }
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    private static boolean isHeartbeat(byte[] s, int length) {
+        return length > 7 && s[0] == '$' && s[1] == 'P' && s[2] == 'N' && s[3] == 'R'
+                && s[4] == 'H' && s[5] == 'B' && s[6] == ',';
+    }
+
+    /**
+     * Sentence waiting to be delivered.
+     */
+    private static final class Delivery implements Delayed {
+        public final Connection connection;
+        public final byte[] data;
+        public final int length;
+        private final long time;
+
+        public Delivery(Connection connection, byte[] data, int length, long time) {
+            this.connection = connection;
+            this.data = data;
+            this.length = length;
+            this.time = time;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            final long t = ((Delivery) o).time;
+            return time < t ? -1 : time == t ? 0 : 1;
+        }
+    }
+
+    private class Connection extends Thread {
+        private final Socket sock;
+        private final byte[] line = new byte[NmeaSentence.MAX_LENGTH];
+        private int lineLength;
+
+        public Connection(Socket sock) {
+            super("FaultServer/Connection");
+            setDaemon(true);
+            this.sock = sock;
+        }
+
+        @Override
+        public void run() {
+            final byte[] buf = new byte[bytesPerSecond == 0 ? 8192 : Math.max(1,
+                    Math.min(8192, bytesPerSecond / 20))];
+            try {
+                final InputStream in = sock.getInputStream();
+                long budgetStart = System.nanoTime();
+                long budgetUsed = 0;
+                while (running) {
+                    final long stall = stalledUntil - System.currentTimeMillis();
+                    if (stall > 0) {
+                        Thread.sleep(stall);
+                        continue;
+                    }
+                    final int n = in.read(buf);
+                    if (n < 0) {
+                        break;
+                    }
+                    onBytes(buf, n);
+                    if (bytesPerSecond != 0) {
+                        // Sleep until these bytes fit in the bandwidth.
+                        budgetUsed += n;
+                        final long due = budgetStart + budgetUsed * 1000000000L / bytesPerSecond;
+                        final long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        } else if (wait < -1000000000L) {
+                            // Do not accumulate unused bandwidth.
+                            budgetStart = System.nanoTime();
+                            budgetUsed = 0;
+                        }
+                    }
+                }
+            } catch (IOException ignore) {
+            } catch (InterruptedException ignore) {
+            } finally {
+                close();
+            }
+        }
+
+        private void onBytes(byte[] buf, int n) {
+            for (int i = 0; i < n; ++i) {
+                final byte b = buf[i];
+                if (lineLength < line.length) {
+                    line[lineLength++] = b;
+                }
+                if (b == '\n') {
+                    final byte[] copy = new byte[lineLength];
+                    System.arraycopy(line, 0, copy, 0, lineLength);
+                    deliveries.add(new Delivery(this, copy, lineLength, System.nanoTime()
+                            + latency * 1000000L));
+                    lineLength = 0;
+                }
+            }
+        }
+
+        public void echo(byte[] data, int length) {
+            if (stalledUntil > System.currentTimeMillis()) {
+                return;
+            }
+            try {
+                final OutputStream out = sock.getOutputStream();
+                synchronized (this) {
+                    out.write(data, 0, length);
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        public void reset() {
+            try {
+                // Send RST instead of FIN.
+                sock.setSoLinger(true, 0);
+            } catch (SocketException ignore) {
+            }
+            close();
+        }
+
+        private void close() {
+            try {
+                sock.close();
+            } catch (IOException ignore) {
+            }
+            synchronized (connections) {
+                connections.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Integration test of {@link MqttPublisher} against a {@link FakeBroker},
+ * through loopback TCP. Each scenario runs with a fresh broker and event
+ * loop, with a 2 second keepalive:
+ * <ul>
+ * <li>steady: QoS 0 sentences at a steady rate, over several keepalive
+ * periods: a single connection is used, and all sentences are delivered;</li>
+ * <li>idle: no sentences: pings keep the connection open;</li>
+ * <li>silent: the broker stops answering pings: the connection is dropped
+ * and opened again;</li>
+ * <li>resend: QoS 1 publications are not acknowledged until the connection
+ * is reset: they are sent again, with the DUP flag;</li>
+ * <li>order: the first QoS 1 publication is acknowledged once later ones
+ * were sent, then the connection is reset: the others are sent again in
+ * their original order.</li>
+ * </ul>
+ * The process exits with status 1 if a check failed.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * MqttPublisherTest [-port N]
+ * </pre>
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+public final class MqttPublisherTest {
+    private static final int KEEPALIVE = 2;
+    private int port = 18830;
+    private int failureCount;
+
+    public static void main(String[] args) throws Exception {
+        final MqttPublisherTest test = new MqttPublisherTest();
+        if (args.length == 2 && "-port".equals(args[0])) {
+            test.port = Integer.parseInt(args[1]);
+        } else if (args.length != 0) {
+            System.err.println("Usage: MqttPublisherTest [-port N]");
+            System.exit(1);
+        }
+        test.steady();
+        test.idle();
+        test.silent();
+        test.resend();
+        test.order();
+        System.out.println(test.failureCount == 0 ? "All checks passed" : test.failureCount
+                + " check(s) failed");
+        System.exit(test.failureCount == 0 ? 0 : 1);
+    }
+
+    private void steady() throws Exception {
+        System.out.println("steady: QoS 0, 10 sentences per second for 6 keepalive periods");
+        final FakeBroker broker = new FakeBroker(port);
+        broker.start();
+        final NioEventLoop loop = new NioEventLoop("MqttPublisherTest");
+        final MqttPublisher publisher = newPublisher(loop, 0);
+        final int count = 6 * KEEPALIVE * 10;
+        for (int seq = 0; seq < count; ++seq) {
+            publisher.offer(sentence(seq));
+            Thread.sleep(100);
+        }
+        Thread.sleep(500);
+        stop(loop, publisher);
+        broker.stop();
+
+        check("single connection", broker.getConnectionCount() == 1, broker.getConnectionCount()
+                + " connection(s)");
+        check("pings sent while publishing", broker.getPingCount() >= 3, broker.getPingCount()
+                + " ping(s)");
+        check("no failure", publisher.getFailure() == null, String.valueOf(publisher
+                .getFailure()));
+        checkDelivered(broker, count);
+    }
+
+    private void idle() throws Exception {
+        System.out.println("idle: no sentences for 3 keepalive periods");
+        final FakeBroker broker = new FakeBroker(port);
+        broker.start();
+        final NioEventLoop loop = new NioEventLoop("MqttPublisherTest");
+        final MqttPublisher publisher = newPublisher(loop, 0);
+        Thread.sleep(3 * KEEPALIVE * 1000 + 500);
+        stop(loop, publisher);
+        broker.stop();
+
+        check("single connection", broker.getConnectionCount() == 1, broker.getConnectionCount()
+                + " connection(s)");
+        check("pings sent", broker.getPingCount() >= 2, broker.getPingCount() + " ping(s)");
+    }
+
+    private void silent() throws Exception {
+        System.out.println("silent: broker stops answering pings");
+        final FakeBroker broker = new FakeBroker(port);
+        broker.setAnswerPings(false);
+        broker.start();
+        final NioEventLoop loop = new NioEventLoop("MqttPublisherTest");
+        final MqttPublisher publisher = newPublisher(loop, 0);
+        // Timeout after 1.5 keepalive periods, then reconnection after 1 s.
+        Thread.sleep(3 * KEEPALIVE * 1000 + 500);
+        stop(loop, publisher);
+        broker.stop();
+
+        check("connection opened again", broker.getConnectionCount() >= 2, broker
+                .getConnectionCount() + " connection(s)");
+        check("broker timeout reported", publisher.getFailure() != null
+                && publisher.getFailure().getMessage().contains("timeout"), String
+                .valueOf(publisher.getFailure()));
+    }
+
+    private void resend() throws Exception {
+        System.out.println("resend: QoS 1 publications acknowledged after a reset");
+        final FakeBroker broker = new FakeBroker(port);
+        broker.setAcknowledge(false);
+        broker.start();
+        final NioEventLoop loop = new NioEventLoop("MqttPublisherTest");
+        final MqttPublisher publisher = newPublisher(loop, 1);
+        Thread.sleep(500);
+        final int count = 4;
+        for (int seq = 0; seq < count; ++seq) {
+            // One message per sentence: batches are closed after 100 ms.
+            publisher.offer(sentence(seq));
+            Thread.sleep(300);
+        }
+        broker.setAcknowledge(true);
+        broker.reset();
+        Thread.sleep(2000);
+        stop(loop, publisher);
+        broker.stop();
+
+        check("connection opened again", broker.getConnectionCount() == 2, broker
+                .getConnectionCount() + " connection(s)");
+        check("unacknowledged messages sent again", broker.getDuplicateCount() == count, broker
+                .getDuplicateCount() + " duplicate(s)");
+        checkDelivered(broker, count);
+    }
+
+    private void order() throws Exception {
+        System.out.println("order: QoS 1 publications sent again in order");
+        final FakeBroker broker = new FakeBroker(port);
+        broker.setAcknowledge(false);
+        broker.start();
+        final NioEventLoop loop = new NioEventLoop("MqttPublisherTest");
+        final MqttPublisher publisher = newPublisher(loop, 1);
+        Thread.sleep(500);
+        final int count = 4;
+        for (int seq = 0; seq < count; ++seq) {
+            publisher.offer(sentence(seq));
+            Thread.sleep(300);
+        }
+        // Acknowledged while later publications are in flight.
+        broker.acknowledgeOldest();
+        Thread.sleep(300);
+        broker.setAcknowledge(true);
+        broker.reset();
+        Thread.sleep(2000);
+        stop(loop, publisher);
+        broker.stop();
+
+        final StringBuilder resent = new StringBuilder();
+        final List<String> payloads = broker.getPayloads();
+        for (final String payload : payloads.subList(Math.min(count, payloads.size()),
+                payloads.size())) {
+            final int comma = payload.lastIndexOf(',');
+            final int star = payload.indexOf('*');
+            if (comma != -1 && star > comma) {
+                resent.append(resent.length() == 0 ? "" : " ").append(
+                        payload.substring(comma + 1, star));
+            }
+        }
+        check("unacknowledged messages sent again in order", "1 2 3".equals(resent
+                .toString()), "sent again: " + resent);
+    }
+
+    private MqttPublisher newPublisher(NioEventLoop loop, int qos) {
+        final MqttPublisher publisher = new MqttPublisher(loop, "localhost", port, "test",
+                "nmea", null, qos, KEEPALIVE, 8);
+        publisher.start();
+        loop.start();
+        return publisher;
+    }
+
+    private static void stop(NioEventLoop loop, MqttPublisher publisher) {
+        publisher.stop();
+        loop.stop();
+    }
+
+    private static NmeaSentence sentence(int seq) {
+        final NmeaSentence nmea = new NmeaSentence();
+        final StringBuilder buf = new StringBuilder(32);
+        buf.append("GPTXT,01,01,02,").append(seq);
+        nmea.length = Nmea.encode(buf, nmea.data, 0);
+        nmea.timestamp = System.currentTimeMillis();
+        return nmea;
+    }
+
+    private void checkDelivered(FakeBroker broker, int count) {
+        final BitSet received = new BitSet(count);
+        for (final String payload : broker.getPayloads()) {
+            for (final String line : payload.split("\r\n")) {
+                final int comma = line.lastIndexOf(',');
+                final int star = line.indexOf('*');
+                if (comma != -1 && star > comma) {
+                    received.set(Integer.parseInt(line.substring(comma + 1, star)));
+                }
+            }
+        }
+        check("all sentences delivered", received.cardinality() == count, received
+                .cardinality() + "/" + count + " sentence(s)");
+    }
+
+    private void check(String name, boolean ok, String detail) {
+        System.out.println("  " + (ok ? "PASS " : "FAIL ") + name + " (" + detail + ")");
+        if (!ok) {
+            failureCount += 1;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * NMEA corpus used by benchmarks.
+ * <p>
+ * Sentences are generated for a boat sailing at a few knots, as sent by a
+ * multi-constellation receiver (GPS, GLONASS, Galileo and BeiDou) once per
+ * second: each epoch holds RMC, VTG, GGA, GSA (one per constellation), GSV
+ * (one group per constellation) and GLL sentences. The corpus is generated
+ * with a fixed seed: all runs use the same sentences.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaCorpus {
+    private static final String[] SYSTEMS = { "GP", "GL", "GA", "GB" };
+    private static final int[] SATELLITES_IN_VIEW = { 11, 7, 6, 8 };
+    private static final int[] FIRST_PRN = { 2, 65, 3, 6 };
+    private final List<String[]> epochs = new ArrayList<String[]>();
+    private final String[] sentences;
+    private final byte[][] bytes;
+
+    /**
+     * Generate a corpus.
+     * 
+     * @param epochCount
+     *            how many epochs (seconds) are generated
+     */
+    public NmeaCorpus(int epochCount) {
+        final Random random = new Random(42);
+        final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
+        cal.clear();
+        cal.set(2014, Calendar.JUNE, 21, 14, 30, 0);
+        double latitude = 47.3021;
+        double longitude = -2.5143;
+        double bearing = 245;
+        final List<String> all = new ArrayList<String>();
+        for (int e = 0; e < epochCount; ++e) {
+            final double knots = 5.5 + random.nextGaussian() * 0.3;
+            bearing = (bearing + random.nextGaussian() * 2 + 360) % 360;
+            latitude += Math.cos(Math.toRadians(bearing)) * knots / 3600 / 60;
+            longitude += Math.sin(Math.toRadians(bearing)) * knots / 3600 / 60
+                    / Math.cos(Math.toRadians(latitude));
+            final String[] epoch = epoch(cal, latitude, longitude, knots, bearing, random);
+            epochs.add(epoch);
+            for (final String s : epoch) {
+                all.add(s);
+            }
+            cal.add(Calendar.SECOND, 1);
+        }
+        sentences = all.toArray(new String[all.size()]);
+        bytes = new byte[sentences.length][];
+        for (int i = 0; i < sentences.length; ++i) {
+            bytes[i] = new byte[sentences[i].length()];
+            for (int j = 0; j < bytes[i].length; ++j) {
+                bytes[i][j] = (byte) sentences[i].charAt(j);
+            }
+        }
+    }
+
+    /**
+     * Get all sentences, with line terminators.
+     */
+    public String[] getSentences() {
+        return sentences;
+    }
+
+    /**
+     * Get all sentences as ASCII bytes, with line terminators.
+     */
+    public byte[][] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get sentences grouped by epoch.
+     */
+    public List<String[]> getEpochs() {
+        return epochs;
+    }
+
+    private static String[] epoch(Calendar cal, double lat, double lon, double knots,
+            double bearing, Random random) {
+        final List<String> epoch = new ArrayList<String>(24);
+        final String time = String.format(Locale.ENGLISH, "%02d%02d%02d.00",
+                cal.get(Calendar.HOUR_OF_DAY), cal.get(Calendar.MINUTE),
+                cal.get(Calendar.SECOND));
+        final String date = String.format(Locale.ENGLISH, "%02d%02d%02d",
+                cal.get(Calendar.DAY_OF_MONTH), cal.get(Calendar.MONTH) + 1,
+                cal.get(Calendar.YEAR) % 100);
+        final String latitude = coordinate(Math.abs(lat), 2) + (lat < 0 ? ",S" : ",N");
+        final String longitude = coordinate(Math.abs(lon), 3) + (lon < 0 ? ",W" : ",E");
+        final String speed = String.format(Locale.ENGLISH, "%.3f", knots);
+        final String course = String.format(Locale.ENGLISH, "%.2f", bearing);
+        int satellitesInUse = 0;
+        for (final int n : SATELLITES_IN_VIEW) {
+            satellitesInUse += n - 2;
+        }
+
+        epoch.add(sentence("GNRMC," + time + ",A," + latitude + "," + longitude + "," + speed
+                + "," + course + "," + date + ",,,A"));
+        epoch.add(sentence(String.format(Locale.ENGLISH, "GNVTG,%s,T,,M,%s,N,%.3f,K,A", course,
+                speed, knots * 1.852)));
+        epoch.add(sentence(String.format(Locale.ENGLISH,
+                "GNGGA,%s,%s,%s,1,%02d,0.62,%.1f,M,49.6,M,,", time, latitude, longitude,
+                Math.min(satellitesInUse, 12), 12.3 + random.nextGaussian() * 0.5)));
+        for (int s = 0; s < SYSTEMS.length; ++s) {
+            final StringBuilder gsa = new StringBuilder("GNGSA,A,3");
+            for (int i = 0; i < 12; ++i) {
+                gsa.append(',');
+                if (i < SATELLITES_IN_VIEW[s] - 2) {
+                    gsa.append(FIRST_PRN[s] + i);
+                }
+            }
+            gsa.append(",1.08,0.62,0.89,").append(s + 1);
+            epoch.add(sentence(gsa.toString()));
+        }
+        for (int s = 0; s < SYSTEMS.length; ++s) {
+            final int inView = SATELLITES_IN_VIEW[s];
+            final int count = (inView + 3) / 4;
+            for (int m = 0; m < count; ++m) {
+                final StringBuilder gsv = new StringBuilder(SYSTEMS[s]).append("GSV,");
+                gsv.append(count).append(',').append(m + 1).append(',');
+                gsv.append(String.format(Locale.ENGLISH, "%02d", inView));
+                for (int i = m * 4; i < Math.min(inView, m * 4 + 4); ++i) {
+                    gsv.append(String.format(Locale.ENGLISH, ",%02d,%02d,%03d,%02d",
+                            FIRST_PRN[s] + i, (i * 37) % 80 + 5, (i * 83) % 360,
+                            30 + random.nextInt(20)));
+                }
+                epoch.add(sentence(gsv.toString()));
+            }
+        }
+        epoch.add(sentence("GNGLL," + latitude + "," + longitude + "," + time + ",A,A"));
+        return epoch.toArray(new String[epoch.size()]);
+    }
+
+    private static String coordinate(double value, int degreeDigits) {
+        final int degrees = (int) value;
+        final double minutes = (value - degrees) * 60;
+        return String.format(Locale.ENGLISH, "%0" + degreeDigits + "d%08.5f", degrees, minutes);
+    }
+
+    private static String sentence(String body) {
+        final byte[] buf = new byte[body.length() + 6];
+        final int len = Nmea.encode(body, buf, 0);
+        final StringBuilder s = new StringBuilder(len);
+        for (int i = 0; i < len; ++i) {
+            s.append((char) buf[i]);
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parse position fixes from sentences.
+ * <p>
+ * {@link NmeaFixParser} is compared with a parser built on
+ * {@link String#split(String)}, as commonly found in NMEA libraries.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ParserBenchmark {
+    private final NmeaFixParser parser = new NmeaFixParser();
+    private String[] sentences;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        sentences = new NmeaCorpus(60).getSentences();
+    }
+
+    private int next() {
+        final int i = next;
+        next = i + 1 == sentences.length ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public void fixParser(Blackhole bh) {
+        if (parser.parse(sentences[next()])) {
+            bh.consume(parser.getFix().latitude);
+        }
+    }
+
+    @Benchmark
+    public void split(Blackhole bh) {
+        final String s = sentences[next()];
+        if (!Nmea.isValid(s)) {
+            return;
+        }
+        final String[] fields = s.substring(0, s.indexOf('*')).split(",", -1);
+        if (fields[0].endsWith("RMC") && fields.length > 9 && "A".equals(fields[2])) {
+            final double lat = Double.parseDouble(fields[3].substring(0, 2))
+                    + Double.parseDouble(fields[3].substring(2)) / 60;
+            final double lon = Double.parseDouble(fields[5].substring(0, 3))
+                    + Double.parseDouble(fields[5].substring(3)) / 60;
+            bh.consume("S".equals(fields[4]) ? -lat : lat);
+            bh.consume("W".equals(fields[6]) ? -lon : lon);
+            bh.consume(Double.parseDouble(fields[7]));
+        } else if (fields[0].endsWith("GGA") && fields.length > 9 && fields[9].length() != 0) {
+            bh.consume(Double.parseDouble(fields[9]));
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consumer-side receiver for probe sentences inserted by the relay (see
+ * {@link NmeaProbe}), computing loss, reordering and latency for each
+ * destination.
+ * <p>
+ * The receiver may act as a relay server (<code>--listen</code>: relays
+ * connect to it, as they would connect to any NMEA consumer), or connect to
+ * a stream (<code>--connect</code>): a {@link RelayHub} consumer port, or
+ * the stream server of a relay when a path such as <code>/nmea</code> is
+ * given. Several endpoints may be used at once. Other sentences are ignored.
+ * <p>
+ * A relay connected to the receiver is named after its
+ * <code>$PNRID</code> sentence, or its remote address and port. On a hub
+ * consumer port, probes are sorted by the source of their tag block
+ * (<code>\s:&lt;id&gt;*hh\</code>): the hub must run with <code>--tag</code>,
+ * otherwise probes from all relays are mixed in a single destination, and
+ * reported as lost or reordered.
+ * <p>
+ * Reported latencies are:
+ * <ul>
+ * <li>network: from the time a probe was sent to the time it was received
+ * here;</li>
+ * <li>age: from the time the last sentence before the probe was received by
+ * the relay to the time the probe was received here, which is how fresh
+ * relayed data is for this consumer.</li>
+ * </ul>
+ * Latencies are only meaningful if the clocks of the phone and of this host
+ * are synchronized (with NTP, for instance): minimum values give an upper
+ * bound of the clock offset.
+ * <p>
+ * This class runs on a plain JVM (see bench/README.txt):
+ * 
+ * <pre>
+ * java com.alexandreroman.nrelay.ProbeReceiver [--listen 14300] [--connect host:port[/path]]
+ *      [--stats 10]
+ * </pre>
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+public final class ProbeReceiver {
+    private static final long RECONNECT_DELAY = 5000;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final String ID_PREFIX = "$PNRID,";
+    private final Map<String, Destination> destinations = new TreeMap<String, Destination>();
+    private final List<Thread> threads = new ArrayList<Thread>(2);
+    private final List<ServerSocket> servers = new ArrayList<ServerSocket>(1);
+    private volatile boolean running = true;
+
+    /**
+     * Accept relay connections on a port. Each relay is a destination.
+     */
+    public void listen(final int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port);
+        servers.add(server);
+        startThread("ProbeReceiver/listen:" + port, new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    final Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (IOException e) {
+                        if (running) {
+                            System.err.println("Failed to accept connection: " + e);
+                        }
+                        return;
+                    }
+                    final String name = "listen:" + port + " "
+                            + socket.getInetAddress().getHostAddress() + ":"
+                            + socket.getPort();
+                    startThread("ProbeReceiver/" + name, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                read(name, socket, false);
+                            } catch (IOException e) {
+                                System.err.println(name + ": " + e);
+                            } finally {
+                                close(socket);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Connect to a stream, such as <code>host:port</code> or
+     * <code>host:port/nmea</code> for the stream server of a relay. The
+     * connection is opened again when lost.
+     */
+    public void connect(final String endpoint) {
+        final int slash = endpoint.indexOf('/');
+        final String address = slash == -1 ? endpoint : endpoint.substring(0, slash);
+        final String path = slash == -1 ? null : endpoint.substring(slash);
+        final int colon = address.lastIndexOf(':');
+        if (colon == -1) {
+            throw new IllegalArgumentException("Invalid endpoint: " + endpoint);
+        }
+        final String host = address.substring(0, colon);
+        final int port = Integer.parseInt(address.substring(colon + 1));
+        startThread("ProbeReceiver/" + endpoint, new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    final Socket socket = new Socket();
+                    try {
+                        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                        if (path != null) {
+                            final OutputStream out = socket.getOutputStream();
+                            out.write(("GET " + path + " HTTP/1.1\r\nHost: " + host
+                                    + "\r\nAccept: text/event-stream\r\n\r\n")
+                                    .getBytes("US-ASCII"));
+                            out.flush();
+                        }
+                        read(endpoint, socket, path != null);
+                    } catch (IOException e) {
+                        if (running) {
+                            System.err.println(endpoint + ": " + e);
+                        }
+                    } finally {
+                        close(socket);
+                    }
+                    try {
+                        Thread.sleep(RECONNECT_DELAY);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop receiving probes.
+     */
+    public void stop() {
+        running = false;
+        for (final ServerSocket server : servers) {
+            try {
+                server.close();
+            } catch (IOException ignore) {
+            }
+        }
+        synchronized (threads) {
+            for (final Thread t : threads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Print statistics for each destination, and start a new period for
+     * latency percentiles.
+     */
+    public void printStats() {
+        final StringBuilder buf = new StringBuilder(256);
+        synchronized (destinations) {
+            buf.append(destinations.size()).append(" destination(s)\n");
+            for (final Destination d : destinations.values()) {
+                d.appendStats(buf);
+                buf.append('\n');
+            }
+        }
+        System.out.print(buf);
+    }
+
+    private void read(String name, Socket socket, boolean http) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "ISO-8859-1"));
+        String line;
+        if (http) {
+            line = in.readLine();
+            if (line == null || !line.contains(" 200 ")) {
+                throw new IOException("Unexpected response: " + line);
+            }
+            // Skip headers.
+            do {
+                line = in.readLine();
+            } while (line != null && line.length() != 0);
+        }
+        String baseName = name;
+        String destinationName = null;
+        Destination d = null;
+        while ((line = in.readLine()) != null) {
+            final long arrival = System.currentTimeMillis();
+            if (line.startsWith(ID_PREFIX) && Nmea.isValid(line.trim())) {
+                // The relay identified itself: $PNRID,<id>*hh
+                baseName = name.substring(0, name.indexOf(' ') + 1)
+                        + line.substring(ID_PREFIX.length(), line.indexOf('*'));
+                continue;
+            }
+            final int i = line.indexOf(NmeaProbe.PREFIX);
+            if (i == -1) {
+                continue;
+            }
+            final String source = i == 0 ? null : parseTagSource(line);
+            final String n = source == null ? baseName : baseName + " " + source;
+            if (!n.equals(destinationName)) {
+                destinationName = n;
+                d = getDestination(n);
+            }
+            final String probe = line.substring(i).trim();
+            if (!Nmea.isValid(probe)) {
+                d.onInvalid();
+                continue;
+            }
+            final String[] fields = probe.substring(0, probe.indexOf('*')).split(",");
+            try {
+                d.onProbe(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]), arrival);
+            } catch (RuntimeException e) {
+                d.onInvalid();
+            }
+        }
+    }
+
+    /**
+     * Get the source of a sentence from its tag block, such as
+     * <code>\g:1-2-3,s:relay1*hh\$...</code>.
+     * 
+     * @return <code>null</code> if there is no source
+     */
+    private static String parseTagSource(String line) {
+        if (line.charAt(0) != '\\') {
+            return null;
+        }
+        final int end = line.indexOf('\\', 1);
+        if (end == -1) {
+            return null;
+        }
+        final int star = line.lastIndexOf('*', end);
+        for (final String field : line.substring(1, star < 1 ? end : star).split(",")) {
+            if (field.startsWith("s:")) {
+                return field.substring(2);
+            }
+        }
+        return null;
+    }
+
+    private Destination getDestination(String name) {
+        synchronized (destinations) {
+            Destination d = destinations.get(name);
+            if (d == null) {
+                d = new Destination(name);
+                destinations.put(name, d);
+            }
+            return d;
+        }
+    }
+
+    private void startThread(String name, Runnable task) {
+        final Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        synchronized (threads) {
+            threads.add(t);
+        }
+        t.start();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Probe statistics for a destination.
+     */
+    private static final class Destination {
+        // Sequences older than this window are counted as late, without
+        // checking for duplicates.
+        private static final int WINDOW = 4096;
+        private static final int MAX_SAMPLES = 64 * 1024;
+        private final String name;
+        private final long[] window = new long[WINDOW];
+        private long maxSequence;
+        private long probeCount;
+        private long lostCount;
+        private long duplicateCount;
+        private long reorderedCount;
+        private long restartCount;
+        private long invalidCount;
+        private final long[] networkLatencies = new long[MAX_SAMPLES];
+        private final long[] ages = new long[MAX_SAMPLES];
+        private int sampleCount;
+
+        public Destination(String name) {
+            this.name = name;
+        }
+
+        public synchronized void onInvalid() {
+            invalidCount += 1;
+        }
+
+        public synchronized void onProbe(long sequence, long received, long sent, long arrival) {
+            if (sequence < 1) {
+                throw new IllegalArgumentException("Invalid sequence: " + sequence);
+            }
+            if (maxSequence - sequence >= WINDOW || (sequence == 1 && maxSequence > 1)) {
+                // The relay was restarted: sequences start again.
+                restartCount += 1;
+                maxSequence = 0;
+                Arrays.fill(window, 0);
+            }
+            final int slot = (int) (sequence % WINDOW);
+            if (sequence > maxSequence) {
+                if (maxSequence != 0) {
+                    lostCount += sequence - maxSequence - 1;
+                }
+                maxSequence = sequence;
+            } else if (window[slot] == sequence) {
+                duplicateCount += 1;
+                return;
+            } else {
+                // Counted as lost when a later probe was received.
+                reorderedCount += 1;
+                lostCount -= 1;
+            }
+            window[slot] = sequence;
+            probeCount += 1;
+            if (sampleCount < MAX_SAMPLES) {
+                networkLatencies[sampleCount] = arrival - sent;
+                ages[sampleCount] = arrival - received;
+                sampleCount += 1;
+            }
+        }
+
+        public synchronized void appendStats(StringBuilder buf) {
+            buf.append(name).append(": ").append(probeCount).append(" probe(s), ")
+                    .append(lostCount).append(" lost, ").append(reorderedCount)
+                    .append(" reordered, ").append(duplicateCount).append(" duplicate(s)");
+            if (restartCount != 0) {
+                buf.append(", ").append(restartCount).append(" restart(s)");
+            }
+            if (invalidCount != 0) {
+                buf.append(", ").append(invalidCount).append(" invalid");
+            }
+            if (sampleCount != 0) {
+                buf.append("\n  network ms: ");
+                appendPercentiles(buf, networkLatencies, sampleCount);
+                buf.append("\n  age ms:     ");
+                appendPercentiles(buf, ages, sampleCount);
+            }
+            sampleCount = 0;
+        }
+
+        private static void appendPercentiles(StringBuilder buf, long[] samples, int count) {
+            Arrays.sort(samples, 0, count);
+            buf.append("min ").append(samples[0]);
+            buf.append(", p50 ").append(samples[count / 2]);
+            buf.append(", p90 ").append(samples[(int) (count * 0.9)]);
+            buf.append(", p99 ").append(samples[(int) (count * 0.99)]);
+            buf.append(", max ").append(samples[count - 1]);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final ProbeReceiver receiver = new ProbeReceiver();
+        long statsInterval = 10000;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final String arg = args[i];
+                if ("--listen".equals(arg)) {
+                    receiver.listen(Integer.parseInt(args[++i]));
+                } else if ("--connect".equals(arg)) {
+                    receiver.connect(args[++i]);
+                } else if ("--stats".equals(arg)) {
+                    statsInterval = Long.parseLong(args[++i]) * 1000;
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+            if (receiver.threads.isEmpty() || statsInterval <= 0) {
+                throw new IllegalArgumentException();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: ProbeReceiver [--listen 14300]"
+                    + " [--connect host:port[/path]] [--stats 10]");
+            System.exit(1);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                receiver.stop();
+                receiver.printStats();
+            }
+        });
+        while (true) {
+            try {
+                Thread.sleep(statsInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            receiver.printStats();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Hand sentences off from a producer thread (GPS callbacks) to a consumer
+ * thread (relay worker).
+ * <p>
+ * Queues are compared without blocking: producers drop sentences when the
+ * queue is full, and consumers poll. Results are reported per operation, for
+ * each side of the queue.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class QueueHandoffBenchmark {
+    private static final int CAPACITY = 64;
+    private String[] sentences;
+    private byte[][] bytes;
+    private ArrayBlockingQueue<String> arrayBlockingQueue;
+    private ConcurrentLinkedQueue<String> concurrentLinkedQueue;
+    private NmeaQueue nmeaQueue;
+
+    @Setup
+    public void setUp() {
+        final NmeaCorpus corpus = new NmeaCorpus(60);
+        sentences = corpus.getSentences();
+        bytes = corpus.getBytes();
+        arrayBlockingQueue = new ArrayBlockingQueue<String>(CAPACITY);
+        concurrentLinkedQueue = new ConcurrentLinkedQueue<String>();
+        nmeaQueue = new NmeaQueue(CAPACITY);
+    }
+
+    /**
+     * Producer state: each producer thread iterates over the corpus.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private int next;
+
+        int next(int length) {
+            final int i = next;
+            next = i + 1 == length ? 0 : i + 1;
+            return i;
+        }
+    }
+
+    /**
+     * Consumer state: sentences are copied to a reused instance.
+     */
+    @State(Scope.Thread)
+    public static class Consumer {
+        final NmeaSentence sentence = new NmeaSentence();
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public boolean arrayBlockingQueueOffer(Producer p) {
+        return arrayBlockingQueue.offer(sentences[p.next(sentences.length)]);
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public String arrayBlockingQueuePoll() {
+        return arrayBlockingQueue.poll();
+    }
+
+    @Benchmark
+    @Group("concurrentLinkedQueue")
+    @GroupThreads(1)
+    public boolean concurrentLinkedQueueOffer(Producer p) {
+        // Unbounded queue: drop sentences when the consumer falls behind.
+        if (concurrentLinkedQueue.size() >= CAPACITY) {
+            return false;
+        }
+        return concurrentLinkedQueue.offer(sentences[p.next(sentences.length)]);
+    }
+
+    @Benchmark
+    @Group("concurrentLinkedQueue")
+    @GroupThreads(1)
+    public String concurrentLinkedQueuePoll() {
+        return concurrentLinkedQueue.poll();
+    }
+
+    @Benchmark
+    @Group("nmeaQueueString")
+    @GroupThreads(1)
+    public boolean nmeaQueueStringOffer(Producer p) {
+        final String s = sentences[p.next(sentences.length)];
+        return nmeaQueue.offer(0, s);
+    }
+
+    @Benchmark
+    @Group("nmeaQueueString")
+    @GroupThreads(1)
+    public void nmeaQueueStringPoll(Consumer c, Blackhole bh) {
+        bh.consume(nmeaQueue.poll(c.sentence));
+    }
+
+    @Benchmark
+    @Group("nmeaQueueBytes")
+    @GroupThreads(1)
+    public boolean nmeaQueueBytesOffer(Producer p) {
+        final byte[] b = bytes[p.next(bytes.length)];
+        return nmeaQueue.offer(0, b, 0, b.length);
+    }
+
+    @Benchmark
+    @Group("nmeaQueueBytes")
+    @GroupThreads(1)
+    public void nmeaQueueBytesPoll(Consumer c, Blackhole bh) {
+        bh.consume(nmeaQueue.poll(c.sentence));
+    }
+}
@@ -0,0 +1,184 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round-trip test: sentences recorded by {@link NmeaRecorder} are read back
+ * with {@link NmeaLogReader} and replayed with {@link NmeaReplay}, for plain
+ * and compressed segments:
+ * <ul>
+ * <li>closed: all sentences are replayed, with their timestamps;</li>
+ * <li>open: a segment still being written (as left by a process which was
+ * killed) is readable up to the last flush.</li>
+ * </ul>
+ * The process exits with status 1 if a check failed.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * RecordReplayTest [-dir DIR]
+ * </pre>
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+public final class RecordReplayTest {
+    private static final int SENTENCE_COUNT = 500;
+    private static final long FIRST_TIMESTAMP = 1400000000000L;
+    private File dir = new File(System.getProperty("java.io.tmpdir"), "nrelay-record-replay");
+    private int failureCount;
+
+    public static void main(String[] args) throws Exception {
+        final RecordReplayTest test = new RecordReplayTest();
+        if (args.length == 2 && "-dir".equals(args[0])) {
+            test.dir = new File(args[1]);
+        } else if (args.length != 0) {
+            System.err.println("Usage: RecordReplayTest [-dir DIR]");
+            System.exit(1);
+        }
+        test.closed(false);
+        test.closed(true);
+        test.open(false);
+        test.open(true);
+        System.out.println(test.failureCount == 0 ? "All checks passed" : test.failureCount
+                + " check(s) failed");
+        System.exit(test.failureCount == 0 ? 0 : 1);
+    }
+
+    private void closed(boolean gzip) throws Exception {
+        System.out.println("closed: " + (gzip ? "compressed" : "plain") + " segment");
+        final File segmentDir = clean(new File(dir, gzip ? "closed-gzip" : "closed"));
+        final NmeaRecorder recorder = new NmeaRecorder(segmentDir, 16 * 1024 * 1024,
+                3600 * 1000, gzip, 1024);
+        recorder.start();
+        for (int i = 0; i < SENTENCE_COUNT; ++i) {
+            recorder.record(FIRST_TIMESTAMP + i * 100, sentence(i));
+        }
+        recorder.stop();
+        // The writer thread closes the segment once pending sentences are
+        // written.
+        Thread.sleep(500);
+
+        final File[] segments = listSegments(segmentDir);
+        check("single segment", segments.length == 1, segments.length + " segment(s)");
+        if (segments.length == 1) {
+            check("segment name", segments[0].getName().endsWith(gzip ? ".log.gz" : ".log"),
+                    segments[0].getName());
+            final List<Replayed> replayed = replay(segments[0]);
+            check("all sentences replayed", replayed.size() == SENTENCE_COUNT, replayed.size()
+                    + "/" + SENTENCE_COUNT + " sentence(s)");
+            int mismatches = 0;
+            for (int i = 0; i < replayed.size(); ++i) {
+                final Replayed r = replayed.get(i);
+                if (!r.sentence.equals(sentence(i)) || r.timestamp != FIRST_TIMESTAMP + i * 100) {
+                    mismatches += 1;
+                }
+            }
+            check("sentences and timestamps kept", mismatches == 0, mismatches
+                    + " mismatch(es)");
+        }
+    }
+
+    private void open(boolean gzip) throws Exception {
+        System.out.println("open: " + (gzip ? "compressed" : "plain")
+                + " segment read while being written");
+        final File segmentDir = clean(new File(dir, gzip ? "open-gzip" : "open"));
+        final NmeaRecorder recorder = new NmeaRecorder(segmentDir, 16 * 1024 * 1024,
+                3600 * 1000, gzip, 1024);
+        recorder.start();
+        for (int i = 0; i < SENTENCE_COUNT; ++i) {
+            recorder.record(FIRST_TIMESTAMP + i * 100, sentence(i));
+        }
+        // Segments are flushed every second.
+        Thread.sleep(1500);
+        recorder.record(FIRST_TIMESTAMP + SENTENCE_COUNT * 100, sentence(SENTENCE_COUNT));
+        Thread.sleep(200);
+
+        final File[] segments = listSegments(segmentDir);
+        check("single segment", segments.length == 1, segments.length + " segment(s)");
+        if (segments.length == 1) {
+            final List<Replayed> replayed = replay(segments[0]);
+            check("flushed sentences replayed", replayed.size() >= SENTENCE_COUNT, replayed
+                    .size() + "/" + SENTENCE_COUNT + " sentence(s)");
+        }
+        recorder.stop();
+    }
+
+    private static String sentence(int seq) {
+        final byte[] data = new byte[NmeaSentence.MAX_LENGTH];
+        final StringBuilder body = new StringBuilder(32);
+        body.append("GPTXT,01,01,02,").append(seq);
+        final int len = Nmea.encode(body, data, 0);
+        return new String(data, 0, 0, len);
+    }
+
+    private static List<Replayed> replay(File segment) throws IOException {
+        final List<Replayed> replayed = new ArrayList<Replayed>();
+        final NmeaReplay replay = new NmeaReplay(new NmeaLogReader(segment),
+                new NmeaReplay.Listener() {
+                    @Override
+                    public void onNmeaReceived(long timestamp, String nmea) {
+                        replayed.add(new Replayed(timestamp, nmea));
+                    }
+                }, 0, false);
+        replay.run();
+        return replayed;
+    }
+
+    private static File clean(File d) throws IOException {
+        if (d.isDirectory()) {
+            for (final File f : d.listFiles()) {
+                if (!f.delete()) {
+                    throw new IOException("Cannot delete file: " + f);
+                }
+            }
+        }
+        return d;
+    }
+
+    private static File[] listSegments(File d) {
+        final File[] segments = d.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().startsWith("nmea-");
+            }
+        });
+        return segments == null ? new File[0] : segments;
+    }
+
+    private void check(String name, boolean ok, String detail) {
+        System.out.println("  " + (ok ? "PASS " : "FAIL ") + name + " (" + detail + ")");
+        if (!ok) {
+            failureCount += 1;
+        }
+    }
+
+    private static final class Replayed {
+        public final long timestamp;
+        public final String sentence;
+
+        public Replayed(long timestamp, String sentence) {
+            this.timestamp = timestamp;
+            this.sentence = sentence;
+        }
+    }
+}
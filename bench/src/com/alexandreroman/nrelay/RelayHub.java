@@ -0,0 +1,542 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Headless hub aggregating NMEA streams from many relays.
+ * <p>
+ * Relays connect to the hub as they would connect to any NMEA consumer. Each
+ * stream is identified by the <code>$PNRID</code> sentence sent by the relay
+ * when it connects, or by its remote address. Heartbeat sentences
+ * (<code>$PNRHB</code>) are echoed to the relay, so that it can detect a dead
+ * hub. Streams are read by a small pool of selector threads, and buffered per
+ * source: a flooding source cannot delay other sources.
+ * <p>
+ * Consumers connect to another port, and get the merged stream of all
+ * sources. A consumer may send <code>SOURCE &lt;id&gt;</code> to get a single
+ * source, or <code>ALL</code> to get back to the merged stream. Sentences in
+ * the merged stream may be tagged with their source, using NMEA 4.10 tag
+ * blocks. Tag block delimiters (such as <code>\</code> and <code>:</code>)
+ * are replaced with <code>_</code> in source ids.
+ * <p>
+ * This class runs on a plain JVM (see bench/README.txt):
+ * 
+ * <pre>
+ * java com.alexandreroman.nrelay.RelayHub [--relay-port 14300] [--consumer-port 14301]
+ *      [--selectors 2] [--tag] [--stats 10]
+ * </pre>
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+public final class RelayHub {
+    private static final int SOURCE_BUFFER_CAPACITY = 256;
+    private static final int CONSUMER_BUFFER_SIZE = 64 * 1024;
+    private static final int TAG_BLOCK_MAX_LENGTH = 64;
+    private final int relayPort;
+    private final int consumerPort;
+    private final boolean tagSources;
+    private final NioEventLoop consumerLoop;
+    private final NioEventLoop[] sourceLoops;
+    private final List<Source> sources = new CopyOnWriteArrayList<Source>();
+    private final List<Consumer> consumers = new ArrayList<Consumer>(4);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final NmeaSentence drained = new NmeaSentence();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainSources();
+        }
+    };
+    private int nextSourceLoop;
+
+    /**
+     * Create a new hub.
+     * 
+     * @param relayPort
+     *            TCP port relays connect to
+     * @param consumerPort
+     *            TCP port consumers connect to
+     * @param selectorCount
+     *            number of selector threads reading relay streams
+     * @param tagSources
+     *            tag sentences in the merged stream with their source
+     * @param statsInterval
+     *            interval between source statistics reports, in milliseconds
+     *            (0 to disable reports)
+     */
+    public RelayHub(int relayPort, int consumerPort, int selectorCount, boolean tagSources,
+            long statsInterval) throws IOException {
+        if (selectorCount < 1) {
+            throw new IllegalArgumentException("Invalid selector count: " + selectorCount);
+        }
+        this.relayPort = relayPort;
+        this.consumerPort = consumerPort;
+        this.tagSources = tagSources;
+        consumerLoop = new NioEventLoop("NRelay/Hub");
+        if (statsInterval > 0) {
+            consumerLoop.addTick(statsInterval, new Runnable() {
+                @Override
+                public void run() {
+                    printStats();
+                }
+            });
+        }
+        sourceLoops = new NioEventLoop[selectorCount];
+        for (int i = 0; i < selectorCount; ++i) {
+            sourceLoops[i] = new NioEventLoop("NRelay/Hub/Sources-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        final ServerSocketChannel relayServer = ServerSocketChannel.open();
+        final ServerSocketChannel consumerServer = ServerSocketChannel.open();
+        try {
+            relayServer.socket().setReuseAddress(true);
+            relayServer.socket().bind(new InetSocketAddress(relayPort));
+            consumerServer.socket().setReuseAddress(true);
+            consumerServer.socket().bind(new InetSocketAddress(consumerPort));
+        } catch (IOException e) {
+            relayServer.close();
+            consumerServer.close();
+            throw e;
+        }
+
+        consumerLoop.register(relayServer, SelectionKey.OP_ACCEPT, new Acceptor(false));
+        consumerLoop.register(consumerServer, SelectionKey.OP_ACCEPT, new Acceptor(true));
+        for (final NioEventLoop loop : sourceLoops) {
+            loop.start();
+        }
+        consumerLoop.start();
+    }
+
+    public void stop() {
+        consumerLoop.stop();
+        for (final NioEventLoop loop : sourceLoops) {
+            loop.stop();
+        }
+    }
+
+    /**
+     * Print statistics for each source.
+     */
+    private void printStats() {
+        final long now = System.currentTimeMillis();
+        final StringBuilder buf = new StringBuilder(256);
+        buf.append(sources.size()).append(" source(s), ");
+        buf.append(consumers.size()).append(" consumer(s)\n");
+        for (final Source s : sources) {
+            s.appendStats(buf, now);
+            buf.append('\n');
+        }
+        appendFailure(buf, consumerLoop);
+        for (final NioEventLoop loop : sourceLoops) {
+            appendFailure(buf, loop);
+        }
+        System.out.print(buf);
+    }
+
+    private static void appendFailure(StringBuilder buf, NioEventLoop loop) {
+        if (loop.getFailure() != null) {
+            buf.append(loop.getFailureCount()).append(" event loop error(s), last: ")
+                    .append(loop.getFailure()).append('\n');
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            consumerLoop.execute(drainTask);
+        }
+    }
+
+    private void drainSources() {
+        drainScheduled.set(false);
+        for (final Source s : sources) {
+            while (s.buffer.poll(drained)) {
+                for (int i = 0; i < consumers.size(); ++i) {
+                    consumers.get(i).append(s, drained);
+                }
+            }
+        }
+        // Consumers may be removed while flushing.
+        for (int i = consumers.size() - 1; i >= 0; --i) {
+            consumers.get(i).flush();
+        }
+    }
+
+    private class Acceptor implements NioEventLoop.Handler {
+        private final boolean consumer;
+
+        public Acceptor(boolean consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            final SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel == null) {
+                return;
+            }
+            if (consumer) {
+                final Consumer c = new Consumer(channel);
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    c.key = consumerLoop.register(channel, SelectionKey.OP_READ, c);
+                } catch (IOException e) {
+                    channel.close();
+                    return;
+                }
+                consumers.add(c);
+            } else {
+                final NioEventLoop loop = sourceLoops[nextSourceLoop++ % sourceLoops.length];
+                final Source s = new Source(channel);
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            loop.register(channel, SelectionKey.OP_READ, s);
+                            sources.add(s);
+                        } catch (IOException e) {
+                            try {
+                                channel.close();
+                            } catch (IOException ignore) {
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+        }
+    }
+
+    /**
+     * Stream received from a relay. Fields are written by the source event
+     * loop only.
+     */
+    private class Source implements NioEventLoop.Handler {
+        public final NmeaQueue buffer = new NmeaQueue(SOURCE_BUFFER_CAPACITY);
+        // Replaced when the id changes: the consumer loop may be copying it.
+        public volatile byte[] tagBlock;
+        public volatile String id;
+        private final String remoteAddress;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+        private final ByteBuffer echoBuffer = ByteBuffer.allocate(NmeaSentence.MAX_LENGTH);
+        private final NmeaFramer framer = new NmeaFramer();
+        private final NmeaSentence sentence = new NmeaSentence();
+        private final long connectedSince = System.currentTimeMillis();
+        private volatile long sentenceCount;
+        private volatile long byteCount;
+        private volatile long checksumErrorCount;
+        private volatile long lastSentenceTime;
+        private volatile long maxGap;
+        private long lastReportedCount;
+        private long lastReportTime = connectedSince;
+
+        public Source(SocketChannel channel) {
+            remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+            setId(channel.socket().getInetAddress().getHostAddress());
+        }
+
+        private void setId(String rawId) {
+            // Tag block: \s:<id>*hh\
+            final byte[] block = new byte[TAG_BLOCK_MAX_LENGTH];
+            int len = 0;
+            block[len++] = '\\';
+            block[len++] = 's';
+            block[len++] = ':';
+            final int start = len;
+            for (int i = 0; i < rawId.length() && len < TAG_BLOCK_MAX_LENGTH - 5; ++i) {
+                final char c = rawId.charAt(i);
+                // Tag block delimiters would break the block (an IPv6 address
+                // holds colons).
+                block[len++] = (byte) (c == '\\' || c == ':' || c == ',' || c == '*' || c < 32
+                        || c > 126 ? '_' : c);
+            }
+            final String newId = new String(block, 0, start, len - start);
+            final int sum = Nmea.checksum(block, 1, len);
+            block[len++] = '*';
+            block[len++] = Nmea.hexDigit(sum >> 4);
+            block[len++] = Nmea.hexDigit(sum);
+            block[len++] = '\\';
+            tagBlock = Arrays.copyOf(block, len);
+            id = newId;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            final int n = ((SocketChannel) key.channel()).read(readBuffer);
+            if (n == -1) {
+                throw new IOException("Connection closed by relay");
+            }
+            byteCount += n;
+            readBuffer.flip();
+            boolean received = false;
+            while (framer.next(readBuffer, sentence)) {
+                final long now = sentence.timestamp;
+                if (lastSentenceTime != 0 && now - lastSentenceTime > maxGap) {
+                    maxGap = now - lastSentenceTime;
+                }
+                lastSentenceTime = now;
+                sentenceCount += 1;
+                if (!isValid(sentence)) {
+                    checksumErrorCount += 1;
+                }
+                if (isIdSentence(sentence)) {
+                    setId(parseId(sentence));
+                    continue;
+                }
+                if (isHeartbeatSentence(sentence)) {
+                    echo(key, sentence);
+                    continue;
+                }
+                buffer.offer(sentence.timestamp, sentence.data, 0, sentence.length);
+                received = true;
+            }
+            readBuffer.clear();
+            if (received) {
+                scheduleDrain();
+            }
+        }
+
+        private void echo(SelectionKey key, NmeaSentence s) throws IOException {
+            echoBuffer.clear();
+            echoBuffer.put(s.data, 0, s.length);
+            echoBuffer.flip();
+            // Heartbeats are small: when the socket is full, this one is
+            // dropped.
+            ((SocketChannel) key.channel()).write(echoBuffer);
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+            sources.remove(this);
+        }
+
+        public void appendStats(StringBuilder buf, long now) {
+            final long count = sentenceCount;
+            final long elapsed = Math.max(1, now - lastReportTime);
+            final long rate = (count - lastReportedCount) * 1000 / elapsed;
+            lastReportedCount = count;
+            lastReportTime = now;
+            buf.append("  ").append(id).append(" (").append(remoteAddress).append("): ");
+            buf.append(rate).append(" sentence(s)/s, ");
+            buf.append(count).append(" sentence(s), ");
+            buf.append(byteCount).append(" byte(s), ");
+            buf.append(checksumErrorCount).append(" checksum error(s), ");
+            buf.append(buffer.getDroppedCount()).append(" dropped, ");
+            buf.append(framer.getOverflowCount()).append(" overflow(s), ");
+            buf.append("max gap ").append(maxGap).append(" ms, ");
+            buf.append("last ").append(lastSentenceTime == 0 ? -1 : now - lastSentenceTime)
+                    .append(" ms ago, ");
+            buf.append("up ").append((now - connectedSince) / 1000).append(" s");
+        }
+    }
+
+    private static boolean isValid(NmeaSentence s) {
+        int star = s.length - 1;
+        while (star > 0 && s.data[star] != '*') {
+            star -= 1;
+        }
+        if (star < 1 || star + 2 >= s.length) {
+            return false;
+        }
+        final int sum = Nmea.checksum(s.data, 1, star);
+        return Nmea.hexValue(s.data[star + 1]) == (sum >> 4)
+                && Nmea.hexValue(s.data[star + 2]) == (sum & 0xf);
+    }
+
+    private static boolean isIdSentence(NmeaSentence s) {
+        return s.length > 7 && s.data[0] == '$' && s.data[1] == 'P' && s.data[2] == 'N'
+                && s.data[3] == 'R' && s.data[4] == 'I' && s.data[5] == 'D' && s.data[6] == ',';
+    }
+
+    private static boolean isHeartbeatSentence(NmeaSentence s) {
+        return s.length > 7 && s.data[0] == '$' && s.data[1] == 'P' && s.data[2] == 'N'
+                && s.data[3] == 'R' && s.data[4] == 'H' && s.data[5] == 'B' && s.data[6] == ',';
+    }
+
+    private static String parseId(NmeaSentence s) {
+        final StringBuilder buf = new StringBuilder(16);
+        for (int i = 7; i < s.length; ++i) {
+            final byte b = s.data[i];
+            if (b == '*' || b == ',' || b == '\r' || b == '\n') {
+                break;
+            }
+            buf.append((char) b);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Consumer connection. This class is used by the consumer event loop
+     * only.
+     */
+    private class Consumer implements NioEventLoop.Handler {
+        private final ByteBuffer out = ByteBuffer.allocateDirect(CONSUMER_BUFFER_SIZE);
+        private final ByteBuffer in = ByteBuffer.allocate(128);
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private String sourceId;
+        private long dropped;
+
+        public Consumer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void append(Source s, NmeaSentence sentence) {
+            if (sourceId != null && !sourceId.equals(s.id)) {
+                return;
+            }
+            final boolean tagged = tagSources && sourceId == null;
+            final byte[] tagBlock = s.tagBlock;
+            final int len = sentence.length + (tagged ? tagBlock.length : 0);
+            if (out.remaining() < len) {
+                // This consumer cannot keep up.
+                dropped += 1;
+                return;
+            }
+            if (tagged) {
+                out.put(tagBlock);
+            }
+            out.put(sentence.data, 0, sentence.length);
+        }
+
+        public void flush() {
+            if (out.position() == 0 || !key.isValid()) {
+                return;
+            }
+            try {
+                out.flip();
+                channel.write(out);
+                out.compact();
+            } catch (IOException e) {
+                NioEventLoop.close(key);
+                return;
+            }
+            final int ops = out.position() == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ
+                    | SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                if (channel.read(in) == -1) {
+                    throw new IOException("Connection closed by consumer");
+                }
+                readCommands();
+            }
+        }
+
+        private void readCommands() {
+            in.flip();
+            int start = in.position();
+            for (int i = start; i < in.limit(); ++i) {
+                if (in.get(i) == '\n') {
+                    final StringBuilder cmd = new StringBuilder(i - start);
+                    for (int j = start; j < i; ++j) {
+                        cmd.append((char) in.get(j));
+                    }
+                    onCommand(cmd.toString().trim());
+                    start = i + 1;
+                }
+            }
+            in.position(start);
+            in.compact();
+            if (!in.hasRemaining()) {
+                // Command is too long.
+                in.clear();
+            }
+        }
+
+        private void onCommand(String cmd) {
+            if ("ALL".equalsIgnoreCase(cmd)) {
+                sourceId = null;
+            } else if (cmd.regionMatches(true, 0, "SOURCE ", 0, 7)) {
+                sourceId = cmd.substring(7).trim();
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+            consumers.remove(this);
+            if (dropped != 0) {
+                System.out.println("Consumer " + channel.socket().getRemoteSocketAddress()
+                        + " disconnected: " + dropped + " sentence(s) dropped");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int relayPort = 14300;
+        int consumerPort = 14301;
+        int selectorCount = 2;
+        boolean tagSources = false;
+        long statsInterval = 10000;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final String arg = args[i];
+                if ("--relay-port".equals(arg)) {
+                    relayPort = Integer.parseInt(args[++i]);
+                } else if ("--consumer-port".equals(arg)) {
+                    consumerPort = Integer.parseInt(args[++i]);
+                } else if ("--selectors".equals(arg)) {
+                    selectorCount = Integer.parseInt(args[++i]);
+                } else if ("--tag".equals(arg)) {
+                    tagSources = true;
+                } else if ("--stats".equals(arg)) {
+                    statsInterval = Long.parseLong(args[++i]) * 1000;
+                } else {
+                    throw new IllegalArgumentException(arg);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: RelayHub [--relay-port 14300] [--consumer-port 14301]"
+                    + " [--selectors 2] [--tag] [--stats 10]");
+            System.exit(1);
+        }
+
+        final RelayHub hub = new RelayHub(relayPort, consumerPort, selectorCount, tagSources,
+                statsInterval);
+        hub.start();
+        System.out.println("NMEA relay hub started: relays on port " + relayPort
+                + ", consumers on port " + consumerPort);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                hub.stop();
+            }
+        });
+    }
+}
@@ -0,0 +1,378 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * End-to-end load test: sentences are produced at a given rate, relayed by
+ * {@link NmeaRelayWorker} and {@link RelayClient} through loopback TCP, and
+ * received by a {@link FaultServer}. Faults are injected following a
+ * schedule. A report is printed at the end: delivered and lost sentences,
+ * duplicates, reordering, latency percentiles and relay state changes.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * RelayLoadTest [options]
+ *   -rate N          sentences per second (default 20)
+ *   -duration S      test duration, in seconds (default 30)
+ *   -queue N         queue capacity (default 64)
+ *   -port N          primary server port (default 10110)
+ *   -backup          start a backup server on port + 1, without faults
+ *   -heartbeat MS    heartbeat interval (default 250)
+ *   -misses N        missed heartbeats before failover (default 2)
+ *   -latency MS      server latency (default 0)
+ *   -bandwidth B     server read rate, in bytes per second (default no limit)
+ *   -faults LIST     fault schedule, such as "stall@10:3,reset@20,refuse@25:5"
+ *                    (times and durations in seconds)
+ * </pre>
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+public final class RelayLoadTest implements FaultServer.Listener, NmeaRelayWorker.Callback {
+    private static final int SENTENCE_LENGTH = 72;
+    private int rate = 20;
+    private int duration = 30;
+    private int queueCapacity = 64;
+    private int port = 10110;
+    private boolean backup;
+    private long heartbeatInterval = 250;
+    private int heartbeatMisses = 2;
+    private long latency;
+    private int bandwidth;
+    private final List<Fault> faults = new ArrayList<Fault>();
+
+    private final BitSet received = new BitSet();
+    private long[] latencies;
+    private int latencyCount;
+    private long delivered;
+    private long duplicates;
+    private long reordered;
+    private long lastSeq = -1;
+    private long start;
+    private final StringBuilder timeline = new StringBuilder();
+    private NmeaRelayContext.State state;
+    private RelayConfig config;
+
+    private static final class Fault {
+        public final String type;
+        public final long at;
+        public final long duration;
+
+        public Fault(String type, long at, long duration) {
+            this.type = type;
+            this.at = at;
+            this.duration = duration;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final RelayLoadTest test = new RelayLoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        test.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            final String a = args[i];
+            if ("-backup".equals(a)) {
+                backup = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value: " + a);
+            }
+            final String v = args[++i];
+            if ("-rate".equals(a)) {
+                rate = Integer.parseInt(v);
+            } else if ("-duration".equals(a)) {
+                duration = Integer.parseInt(v);
+            } else if ("-queue".equals(a)) {
+                queueCapacity = Integer.parseInt(v);
+            } else if ("-port".equals(a)) {
+                port = Integer.parseInt(v);
+            } else if ("-heartbeat".equals(a)) {
+                heartbeatInterval = Long.parseLong(v);
+            } else if ("-misses".equals(a)) {
+                heartbeatMisses = Integer.parseInt(v);
+            } else if ("-latency".equals(a)) {
+                latency = Long.parseLong(v);
+            } else if ("-bandwidth".equals(a)) {
+                bandwidth = Integer.parseInt(v);
+            } else if ("-faults".equals(a)) {
+                for (final String f : v.split(",")) {
+                    faults.add(parseFault(f.trim()));
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + a);
+            }
+        }
+        if (rate < 1 || duration < 1) {
+            throw new IllegalArgumentException("Invalid rate or duration");
+        }
+        Collections.sort(faults, new Comparator<Fault>() {
+            @Override
+            public int compare(Fault a, Fault b) {
+                return a.at < b.at ? -1 : a.at == b.at ? 0 : 1;
+            }
+        });
+    }
+
+    private static Fault parseFault(String s) {
+        // type@time[:duration]
+        final int at = s.indexOf('@');
+        if (at < 1) {
+            throw new IllegalArgumentException("Invalid fault: " + s);
+        }
+        final String type = s.substring(0, at);
+        if (!"stall".equals(type) && !"reset".equals(type) && !"refuse".equals(type)) {
+            throw new IllegalArgumentException("Unknown fault: " + type);
+        }
+        final int colon = s.indexOf(':', at);
+        final double time = Double.parseDouble(colon < 0 ? s.substring(at + 1) : s.substring(
+                at + 1, colon));
+        final double length = colon < 0 ? 0 : Double.parseDouble(s.substring(colon + 1));
+        if (!"reset".equals(type) && length <= 0) {
+            throw new IllegalArgumentException("Missing fault duration: " + s);
+        }
+        return new Fault(type, (long) (time * 1000), (long) (length * 1000));
+    }
+
+    private void run() throws Exception {
+        final int expected = rate * duration;
+        latencies = new long[expected];
+        final FaultServer primary = new FaultServer(port, latency, bandwidth, this);
+        final FaultServer secondary = backup ? new FaultServer(port + 1, 0, 0, this) : null;
+        primary.start();
+        if (secondary != null) {
+            secondary.start();
+        }
+
+        final List<InetSocketAddress> destinations = new ArrayList<InetSocketAddress>(2);
+        destinations.add(new InetSocketAddress("localhost", port));
+        if (backup) {
+            destinations.add(new InetSocketAddress("localhost", port + 1));
+        }
+        config = new RelayConfig(true, destinations, heartbeatInterval, heartbeatMisses,
+                "loadtest", null, false, new TransformProfile[0], 0);
+        final NmeaQueue queue = new NmeaQueue(queueCapacity);
+        final NmeaRelayWorker worker = new NmeaRelayWorker(queue, new RelayPipeline(), this);
+        start = System.nanoTime();
+        worker.start();
+
+        // Produce sentences at a fixed rate, injecting faults on schedule.
+        final byte[] buf = new byte[NmeaSentence.MAX_LENGTH];
+        final StringBuilder body = new StringBuilder(SENTENCE_LENGTH);
+        final long period = 1000000000L / rate;
+        int nextFault = 0;
+        long lastReport = 0;
+        for (int seq = 0; seq < expected; ++seq) {
+            final long due = start + seq * period;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+            final long elapsed = (System.nanoTime() - start) / 1000000;
+            while (nextFault < faults.size() && faults.get(nextFault).at <= elapsed) {
+                inject(primary, faults.get(nextFault++));
+            }
+            if (elapsed - lastReport >= 1000) {
+                lastReport = elapsed;
+                report(elapsed, seq, queue);
+            }
+
+            // $PNRLD,<seq>,<send time>,<padding>*hh
+            body.setLength(0);
+            body.append("PNRLD,").append(seq).append(',').append(System.nanoTime()).append(',');
+            while (body.length() < SENTENCE_LENGTH - 6) {
+                body.append('0');
+            }
+            final int len = Nmea.encode(body, buf, 0);
+            queue.offer(System.currentTimeMillis(), buf, 0, len);
+        }
+
+        // Let the relay drain its queue.
+        final long drainEnd = System.currentTimeMillis() + Math.max(2000, latency * 2);
+        while (System.currentTimeMillis() < drainEnd) {
+            Thread.sleep(100);
+        }
+        worker.interrupt();
+        worker.join(5000);
+        primary.stop();
+        if (secondary != null) {
+            secondary.stop();
+        }
+        printReport(expected, queue.getDroppedCount(), primary, secondary);
+        System.out.println();
+        System.out.println(worker.getPipeline());
+    }
+
+    private void inject(FaultServer server, Fault f) {
+        synchronized (this) {
+            appendTime();
+            timeline.append("fault: ").append(f.type);
+            if (f.duration != 0) {
+                timeline.append(" for ").append(f.duration).append(" ms");
+            }
+            timeline.append('\n');
+        }
+        if ("stall".equals(f.type)) {
+            server.stall(f.duration);
+        } else if ("reset".equals(f.type)) {
+            server.reset();
+        } else {
+            server.refuse(f.duration);
+        }
+    }
+
+    private synchronized void report(long elapsed, int offered, NmeaQueue queue) {
+        System.out.println(String.format(Locale.ENGLISH,
+                "%5.1f s  offered %7d  delivered %7d  dropped %6d  %s", elapsed / 1000.0,
+                offered, delivered, queue.getDroppedCount(), state));
+    }
+
+    private synchronized void printReport(int offered, long dropped, FaultServer primary,
+            FaultServer secondary) {
+        final long lost = offered - dropped - delivered;
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "Offered:          %d (%d/s)",
+                offered, rate));
+        System.out.println("Dropped by queue: " + dropped);
+        System.out.println("Delivered:        " + delivered);
+        System.out.println("Lost in transit:  " + lost);
+        System.out.println("Duplicates:       " + duplicates);
+        System.out.println("Reordered:        " + reordered);
+        System.out.println("Connections:      " + primary.getConnectionCount()
+                + (secondary == null ? "" : " (backup: " + secondary.getConnectionCount()
+                        + ")"));
+        if (latencyCount != 0) {
+            final long[] l = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(l);
+            System.out.println(String.format(Locale.ENGLISH,
+                    "Latency (ms):     p50 %.2f  p90 %.2f  p99 %.2f  max %.2f",
+                    percentile(l, 0.5), percentile(l, 0.9), percentile(l, 0.99),
+                    l[l.length - 1] / 1e6));
+        }
+        System.out.println();
+        System.out.print(timeline);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * p))] / 1e6;
+    }
+
+    private void appendTime() {
+        timeline.append(String.format(Locale.ENGLISH, "%8.3f s  ",
+                (System.nanoTime() - start) / 1e9));
+    }
+
+    @Override
+    public synchronized void onSentence(byte[] data, int length, long deliveryTime) {
+        // $PNRLD,<seq>,<send time>,...
+        if (length < 7 || data[1] != 'P' || data[3] != 'R' || data[4] != 'L') {
+            return;
+        }
+        int i = 7;
+        long seq = 0;
+        for (; i < length && data[i] != ','; ++i) {
+            seq = seq * 10 + data[i] - '0';
+        }
+        long sendTime = 0;
+        for (++i; i < length && data[i] != ','; ++i) {
+            sendTime = sendTime * 10 + data[i] - '0';
+        }
+        if (seq < 0 || seq >= latencies.length) {
+            return;
+        }
+        if (received.get((int) seq)) {
+            duplicates += 1;
+            return;
+        }
+        received.set((int) seq);
+        delivered += 1;
+        if (seq < lastSeq) {
+            reordered += 1;
+        } else {
+            lastSeq = seq;
+        }
+        latencies[latencyCount++] = deliveryTime - sendTime;
+    }
+
+    @Override
+    public void onStarted() {
+    }
+
+    @Override
+    public void onStopped() {
+    }
+
+    @Override
+    public RelayConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public synchronized void onStateChanged(NmeaRelayContext.State state) {
+        if (state != this.state) {
+            this.state = state;
+            appendTime();
+            timeline.append("state: ").append(state).append('\n');
+        }
+    }
+
+    @Override
+    public synchronized void onDestinationChanged(int destination, IOException cause) {
+        appendTime();
+        timeline.append("destination: ");
+        if (destination < 0) {
+            timeline.append("none");
+        } else {
+            timeline.append(destination == 0 ? "primary" : "backup");
+        }
+        if (cause != null) {
+            timeline.append(" (").append(cause.getMessage()).append(')');
+        }
+        timeline.append('\n');
+    }
+
+    @Override
+    public synchronized void onNetworkSwitched(long delay, int sentCount, int droppedCount) {
+        appendTime();
+        timeline.append("network switched: ").append(delay).append(" ms, ").append(sentCount)
+                .append(" sent, ").append(droppedCount).append(" dropped\n");
+    }
+
+    @Override
+    public synchronized void onFailure(IOException e) {
+        appendTime();
+        timeline.append("failure: ").append(e).append('\n');
+    }
+}
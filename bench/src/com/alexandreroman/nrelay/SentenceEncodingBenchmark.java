@@ -0,0 +1,97 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Copy a sentence to the socket buffer.
+ * <p>
+ * The relay used to encode each sentence string with a
+ * {@link CharsetEncoder}, through {@link CharBuffer#wrap(CharSequence)}.
+ * Sentences are now stored as bytes: they are copied as is.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SentenceEncodingBenchmark {
+    private final ByteBuffer buffer = ByteBuffer.allocate(512);
+    private final CharsetEncoder encoder = Charset.forName("US-ASCII").newEncoder();
+    private final NmeaSentence sentence = new NmeaSentence();
+    private String[] sentences;
+    private byte[][] bytes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final NmeaCorpus corpus = new NmeaCorpus(60);
+        sentences = corpus.getSentences();
+        bytes = corpus.getBytes();
+    }
+
+    private int next() {
+        final int i = next;
+        next = i + 1 == sentences.length ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public ByteBuffer charsetEncoder() {
+        buffer.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(sentences[next()]), buffer, true);
+        encoder.flush(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer stringToBytes() {
+        // Sentence received as a string (GPS callback), copied once to a
+        // queue slot, then to the socket buffer.
+        sentence.set(0, sentences[next()]);
+        buffer.clear();
+        buffer.put(sentence.data, 0, sentence.length);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer bytesToBytes() {
+        // Sentence received as bytes (network input, synthesizer).
+        final byte[] b = bytes[next()];
+        sentence.set(0, b, 0, b.length);
+        buffer.clear();
+        buffer.put(sentence.data, 0, sentence.length);
+        buffer.flip();
+        return buffer;
+    }
+}
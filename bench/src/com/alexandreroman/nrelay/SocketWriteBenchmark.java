@@ -0,0 +1,137 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Write sentences to a socket over loopback, one write per sentence or one
+ * write per epoch. Results are reported per sentence.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SocketWriteBenchmark {
+    /**
+     * Number of sentences in each epoch of the corpus.
+     */
+    private static final int EPOCH_SIZE = 17;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+    private byte[][][] epochs;
+    private int next;
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private Thread reader;
+
+    @Setup
+    public void setUp() throws IOException {
+        final List<String[]> corpus = new NmeaCorpus(60).getEpochs();
+        epochs = new byte[corpus.size()][][];
+        for (int e = 0; e < epochs.length; ++e) {
+            final String[] epoch = corpus.get(e);
+            if (epoch.length != EPOCH_SIZE) {
+                throw new IllegalStateException("Unexpected epoch size: " + epoch.length);
+            }
+            epochs[e] = new byte[epoch.length][];
+            for (int i = 0; i < epoch.length; ++i) {
+                epochs[e][i] = epoch[i].getBytes("US-ASCII");
+            }
+        }
+
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        client.socket().setTcpNoDelay(true);
+        final SocketChannel peer = server.accept();
+        reader = new Thread("Reader") {
+            @Override
+            public void run() {
+                final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while (peer.read(in) >= 0) {
+                        in.clear();
+                    }
+                } catch (IOException ignore) {
+                } finally {
+                    try {
+                        peer.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        };
+        reader.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        reader.join();
+        server.close();
+    }
+
+    private byte[][] nextEpoch() {
+        final int i = next;
+        next = i + 1 == epochs.length ? 0 : i + 1;
+        return epochs[i];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCH_SIZE)
+    public void perSentence() throws IOException {
+        for (final byte[] sentence : nextEpoch()) {
+            buffer.clear();
+            buffer.put(sentence);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                client.write(buffer);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCH_SIZE)
+    public void perEpoch() throws IOException {
+        buffer.clear();
+        for (final byte[] sentence : nextEpoch()) {
+            buffer.put(sentence);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+}
@@ -19,6 +19,13 @@ package com.alexandreroman.nrelay;
 import static com.alexandreroman.nrelay.Constants.PREF_FILE;
 import static com.alexandreroman.nrelay.Constants.SP_NETWORK_READY;
 import static com.alexandreroman.nrelay.Constants.TAG;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
+
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -38,19 +45,17 @@ public class ConnectivityListener extends BroadcastReceiver {
         if (!ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
             return;
         }
-        checkIfNetworkIsReady(context);
+        if (checkIfNetworkIsReady(context)) {
+            NmeaRelayService.resume(context);
+        }
     }
 
-    public static void checkIfNetworkIsReady(Context context) {
-        boolean readyToBroadcast = false;
-
-        final ConnectivityManager connManager = (ConnectivityManager) context
-                .getSystemService(Context.CONNECTIVITY_SERVICE);
-        final NetworkInfo netInfo = connManager.getActiveNetworkInfo();
-        if (netInfo != null && netInfo.isAvailable() && netInfo.isConnected()) {
-            readyToBroadcast = netInfo.getType() == ConnectivityManager.TYPE_WIFI
-                    || netInfo.getType() == ConnectivityManager.TYPE_ETHERNET;
-        }
+    /**
+     * Check if the network is ready to broadcast NMEA, and store the result
+     * in preferences.
+     */
+    public static boolean checkIfNetworkIsReady(Context context) {
+        final boolean readyToBroadcast = getReadyNetwork(context) != null;
 
         Log.i(TAG, "Network connectivity changed: " + (readyToBroadcast ? "ready" : "NOT ready")
                 + " to broadcast NMEA");
@@ -58,5 +63,54 @@ public class ConnectivityListener extends BroadcastReceiver {
                 Context.MODE_PRIVATE).edit();
         prefs.putBoolean(SP_NETWORK_READY, readyToBroadcast);
         prefs.apply();
+        return readyToBroadcast;
+    }
+
+    /**
+     * Get a key identifying the network used to broadcast NMEA: the key
+     * changes when the device switches to another network, or gets another
+     * address.
+     * 
+     * @return network key, or <code>null</code> if the network is not ready
+     *         to broadcast NMEA
+     */
+    public static String getNetworkKey(Context context) {
+        final NetworkInfo netInfo = getReadyNetwork(context);
+        if (netInfo == null) {
+            return null;
+        }
+        final StringBuilder key = new StringBuilder(64);
+        key.append(netInfo.getTypeName()).append(' ').append(netInfo.getExtraInfo());
+        try {
+            for (final Enumeration<NetworkInterface> i = NetworkInterface
+                    .getNetworkInterfaces(); i != null && i.hasMoreElements();) {
+                final NetworkInterface ni = i.nextElement();
+                if (!ni.isUp() || ni.isLoopback()) {
+                    continue;
+                }
+                for (final Enumeration<InetAddress> j = ni.getInetAddresses(); j
+                        .hasMoreElements();) {
+                    final InetAddress addr = j.nextElement();
+                    if (addr instanceof Inet4Address) {
+                        key.append(' ').append(addr.getHostAddress());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(TAG, "Failed to get network addresses", e);
+        }
+        return key.toString();
+    }
+
+    private static NetworkInfo getReadyNetwork(Context context) {
+        final ConnectivityManager connManager = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo netInfo = connManager.getActiveNetworkInfo();
+        if (netInfo != null && netInfo.isAvailable() && netInfo.isConnected()
+                && (netInfo.getType() == ConnectivityManager.TYPE_WIFI
+                || netInfo.getType() == ConnectivityManager.TYPE_ETHERNET)) {
+            return netInfo;
+        }
+        return null;
     }
 }
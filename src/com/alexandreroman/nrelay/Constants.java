@@ -30,6 +30,43 @@ final class Constants {
      * Shared preferences file name.
      */
     public static final String PREF_FILE = "nrelay";
+    /**
+     * Shared preferences file name for state kept between sessions.
+     */
+    public static final String STATE_FILE = "nrelay-state";
+    /**
+     * Intent action: resume relaying if the last session was not stopped by
+     * the user.
+     */
+    public static final String ACTION_RESUME = "com.alexandreroman.nrelay.action.RESUME";
+    /**
+     * State key: is relaying active (not stopped by the user)?
+     */
+    public static final String ST_RELAY_ACTIVE = "relayActive";
+    /**
+     * State key: latitude of the last known location (double bits).
+     */
+    public static final String ST_LAST_LATITUDE = "lastLatitude";
+    /**
+     * State key: longitude of the last known location (double bits).
+     */
+    public static final String ST_LAST_LONGITUDE = "lastLongitude";
+    /**
+     * State key: accuracy of the last known location.
+     */
+    public static final String ST_LAST_ACCURACY = "lastAccuracy";
+    /**
+     * State key: time of the last known location.
+     */
+    public static final String ST_LAST_TIME = "lastTime";
+    /**
+     * State key: satellites used in the last known location.
+     */
+    public static final String ST_LAST_SATELLITES_IN_USE = "lastSatellitesInUse";
+    /**
+     * State key: satellites in view for the last known location.
+     */
+    public static final String ST_LAST_SATELLITES_IN_VIEW = "lastSatellitesInView";
     /**
      * Preference key: where to send NMEA sentences?
      */
@@ -38,10 +75,149 @@ final class Constants {
      * Preference key: UDP port.
      */
     public static final String SP_PORT = "port";
+    /**
+     * Preference key: backup servers, used when the server is unreachable.
+     */
+    public static final String SP_BACKUP_HOSTS = "backupHosts";
+    /**
+     * Preference key: heartbeat interval, in milliseconds (0, the default,
+     * disables heartbeats).
+     */
+    public static final String SP_HEARTBEAT_INTERVAL = "heartbeatInterval";
+    /**
+     * Preference key: how many heartbeats may be missed before the server is
+     * considered dead.
+     */
+    public static final String SP_HEARTBEAT_MISSES = "heartbeatMisses";
+    /**
+     * Preference key: identifier sent to the server when connecting.
+     */
+    public static final String SP_SOURCE_ID = "sourceId";
+    /**
+     * Preference key: transformation profile of sentences sent to the server.
+     */
+    public static final String SP_RELAY_PROFILE = "relayProfile";
+    /**
+     * Preference key: interval between probe sentences, in seconds.
+     */
+    public static final String SP_PROBE_INTERVAL = "probeInterval";
+    /**
+     * Preference key: resume relaying after a reboot or a restart.
+     */
+    public static final String SP_AUTO_RESUME = "autoResume";
+    /**
+     * Preference key: stream NMEA sentences and fixes to browsers.
+     */
+    public static final String SP_STREAM = "stream";
+    /**
+     * Preference key: TCP port of the streaming server.
+     */
+    public static final String SP_STREAM_PORT = "streamPort";
+    /**
+     * Preference key: transformation profile of streamed sentences.
+     */
+    public static final String SP_STREAM_PROFILE = "streamProfile";
+    /**
+     * Preference key: publish NMEA sentences to an MQTT broker.
+     */
+    public static final String SP_MQTT = "mqtt";
+    /**
+     * Preference key: MQTT broker host address.
+     */
+    public static final String SP_MQTT_HOST = "mqttHost";
+    /**
+     * Preference key: MQTT broker port.
+     */
+    public static final String SP_MQTT_PORT = "mqttPort";
+    /**
+     * Preference key: MQTT topic for NMEA sentences.
+     */
+    public static final String SP_MQTT_TOPIC = "mqttTopic";
+    /**
+     * Preference key: MQTT topic for fixes.
+     */
+    public static final String SP_MQTT_FIX_TOPIC = "mqttFixTopic";
+    /**
+     * Preference key: MQTT quality of service.
+     */
+    public static final String SP_MQTT_QOS = "mqttQos";
+    /**
+     * Preference key: transformation profile of published sentences.
+     */
+    public static final String SP_MQTT_PROFILE = "mqttProfile";
     /**
      * Preference key: is network ready to broadcast NMEA?
      */
     public static final String SP_NETWORK_READY = "networkReady";
+    /**
+     * Preference key: where do NMEA sentences come from?
+     */
+    public static final String SP_NMEA_SOURCE = "nmeaSource";
+    /**
+     * Preference key: NMEA log file to replay.
+     */
+    public static final String SP_REPLAY_FILE = "replayFile";
+    /**
+     * Preference key: NMEA log replay speed.
+     */
+    public static final String SP_REPLAY_SPEED = "replaySpeed";
+    /**
+     * Preference key: replay NMEA log file in a loop?
+     */
+    public static final String SP_REPLAY_LOOP = "replayLoop";
+    /**
+     * Preference key: network inputs NMEA sentences are read from.
+     */
+    public static final String SP_INPUTS = "inputs";
+    /**
+     * Preference key: priority of sentences from the phone, against network
+     * inputs.
+     */
+    public static final String SP_PHONE_PRIORITY = "phonePriority";
+    /**
+     * Preference key: talker identifier set to standard sentences.
+     */
+    public static final String SP_TALKER_ID = "talkerId";
+    /**
+     * Preference key: drop proprietary sentences?
+     */
+    public static final String SP_STRIP_PROPRIETARY = "stripProprietary";
+    /**
+     * Preference key: record NMEA sentences to log files?
+     */
+    public static final String SP_RECORD = "record";
+    /**
+     * Preference key: maximum size of a log file segment, in megabytes.
+     */
+    public static final String SP_RECORD_SEGMENT_SIZE = "recordSegmentSize";
+    /**
+     * Preference key: maximum duration of a log file segment, in minutes.
+     */
+    public static final String SP_RECORD_SEGMENT_DURATION = "recordSegmentDuration";
+    /**
+     * Preference key: compress log file segments?
+     */
+    public static final String SP_RECORD_GZIP = "recordGzip";
+    /**
+     * Preference key: store position fixes?
+     */
+    public static final String SP_TRACK = "track";
+    /**
+     * Preference key: track compaction tolerance, in meters.
+     */
+    public static final String SP_TRACK_TOLERANCE = "trackTolerance";
+    /**
+     * NMEA source: sentences are received from the GPS.
+     */
+    public static final String NMEA_SOURCE_GPS = "gps";
+    /**
+     * NMEA source: sentences are generated from location updates.
+     */
+    public static final String NMEA_SOURCE_LOCATION = "location";
+    /**
+     * NMEA source: sentences are replayed from a log file.
+     */
+    public static final String NMEA_SOURCE_REPLAY = "replay";
 
     private Constants() {
     }
@@ -0,0 +1,82 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Position fix.
+ * <p>
+ * Instances are mutable, so that they can be reused. Optional values are set
+ * to {@link Float#NaN} when unknown.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class Fix {
+    /**
+     * Fix time, in milliseconds since January 1, 1970 UTC.
+     */
+    public long time;
+    /**
+     * Latitude, in degrees.
+     */
+    public double latitude;
+    /**
+     * Longitude, in degrees.
+     */
+    public double longitude;
+    /**
+     * Altitude above sea level, in meters.
+     */
+    public float altitude;
+    /**
+     * Speed over ground, in meters per second.
+     */
+    public float speed;
+    /**
+     * Bearing, in degrees.
+     */
+    public float bearing;
+    /**
+     * Horizontal accuracy, in meters.
+     */
+    public float accuracy;
+
+    public Fix() {
+        reset();
+    }
+
+    public void reset() {
+        time = 0;
+        latitude = longitude = 0;
+        altitude = speed = bearing = accuracy = Float.NaN;
+    }
+
+    public void set(Fix fix) {
+        time = fix.time;
+        latitude = fix.latitude;
+        longitude = fix.longitude;
+        altitude = fix.altitude;
+        speed = fix.speed;
+        bearing = fix.bearing;
+        accuracy = fix.accuracy;
+    }
+
+    @Override
+    public String toString() {
+        return "Fix[time=" + time + ", latitude=" + latitude + ", longitude=" + longitude
+                + ", accuracy=" + accuracy + "]";
+    }
+}
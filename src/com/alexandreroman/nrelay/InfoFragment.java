@@ -88,6 +88,7 @@ public class InfoFragment extends Fragment implements NmeaRelayListener {
     private TextView stateTV;
     private TextView satellitesTV;
     private TextView accuracyTV;
+    private TextView firstSentenceTV;
     private MenuItem startStopAction;
 
     @Override
@@ -96,13 +97,14 @@ public class InfoFragment extends Fragment implements NmeaRelayListener {
         stateTV = (TextView) v.findViewById(R.id.info_state);
         satellitesTV = (TextView) v.findViewById(R.id.info_satellites);
         accuracyTV = (TextView) v.findViewById(R.id.info_accuracy);
+        firstSentenceTV = (TextView) v.findViewById(R.id.info_first_sentence);
         return v;
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        stateTV = satellitesTV = accuracyTV = null;
+        stateTV = satellitesTV = accuracyTV = firstSentenceTV = null;
         startStopAction = null;
     }
 
@@ -195,10 +197,19 @@ public class InfoFragment extends Fragment implements NmeaRelayListener {
                 context.satellitesInUse, context.satellitesInView);
         satellitesTV.setText(satellitesStr);
 
+        if (context.timeToFirstSentence < 0) {
+            firstSentenceTV.setVisibility(View.GONE);
+        } else {
+            firstSentenceTV.setText(String.format(getString(R.string.time_to_first_sentence),
+                    context.timeToFirstSentence / 1000f));
+            firstSentenceTV.setVisibility(View.VISIBLE);
+        }
+
         stateTV.setText(STATE_STRINGS.get(context.state.ordinal()));
 
         final int stateDrawable;
-        if (context.state == NmeaRelayContext.State.RELAYING_NMEA && context.location == null) {
+        if (context.state == NmeaRelayContext.State.RELAYING_NMEA
+                && (context.location == null || context.cached)) {
             stateDrawable = R.drawable.state_orange;
         } else {
             stateDrawable = STATE_ICONS.get(context.state.ordinal());
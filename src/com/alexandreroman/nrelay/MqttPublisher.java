@@ -0,0 +1,586 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publish NMEA sentences and fixes to an MQTT broker (MQTT 3.1.1).
+ * <p>
+ * Sentences are batched per epoch: sentences received in a burst are
+ * published as a single message, once no sentence was received for a short
+ * time. Fixes are conflated: only the latest fix is published. Messages are
+ * published with QoS 0 or 1. With QoS 1, a bounded number of messages may be
+ * waiting for an acknowledgement: these messages are sent again after a
+ * reconnection.
+ * <p>
+ * The connection is kept open, with keepalive pings, and is opened again
+ * when lost. All network operations are run on an event loop, which may be
+ * shared with other components: this class never blocks callers. Sentences
+ * received while the broker is unreachable are dropped once the current batch
+ * is full.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class MqttPublisher {
+    private static final int MAX_PAYLOAD = 4096;
+    private static final int MAX_TOPIC = 256;
+    private static final int PACKET_SIZE = MAX_PAYLOAD + MAX_TOPIC + 16;
+    private static final long TICK_INTERVAL = 50;
+    private static final long EPOCH_GAP = 100;
+    private static final long MAX_BATCH_DELAY = 1000;
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 30000;
+    private static final int CONNECT = 0x10;
+    private static final int CONNACK = 0x20;
+    private static final int PUBLISH = 0x30;
+    private static final int PUBACK = 0x40;
+    private static final int PINGREQ = 0xc0;
+    private static final int PINGRESP = 0xd0;
+    private static final int DUP = 0x08;
+    private final InetSocketAddress address;
+    private final byte[] topic;
+    private final byte[] fixTopic;
+    private final int qos;
+    private final long keepAlive;
+    private final byte[] connectPacket;
+    private final NioEventLoop loop;
+    private final NmeaQueue queue = new NmeaQueue(256);
+    private final NmeaSentence sentence = new NmeaSentence();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            drain();
+        }
+    };
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+    private final NioEventLoop.Resolution resolution = new NioEventLoop.Resolution() {
+        @Override
+        public void onResolved(InetSocketAddress resolved) {
+            resolving = false;
+            if (!running) {
+                return;
+            }
+            if (resolved == null) {
+                failure = new IOException("Cannot resolve MQTT broker address: "
+                        + address.getHostName());
+                scheduleReconnect();
+                return;
+            }
+            connect(resolved);
+        }
+    };
+    private final Runnable closeTask = new Runnable() {
+        @Override
+        public void run() {
+            loop.removeTick(tickTask);
+            if (key != null) {
+                NioEventLoop.close(key);
+            }
+        }
+    };
+    private final byte[] batch = new byte[MAX_PAYLOAD];
+    private int batchLength;
+    private long batchStart;
+    private long lastAppend;
+    private final StringBuilder fixJson = new StringBuilder(256);
+    private final byte[] fixPayload = new byte[512];
+    private int fixLength;
+    private boolean fixPending;
+    private final byte[] packet = new byte[PACKET_SIZE];
+    private final byte[][] inFlight;
+    private final int[] inFlightLengths;
+    private final int[] inFlightIds;
+    private int inFlightCount;
+    private int nextPacketId = 1;
+    private final ByteBuffer in = ByteBuffer.allocate(1024);
+    private final ByteBuffer out;
+    private SelectionKey key;
+    private volatile boolean running;
+    private boolean resolving;
+    private boolean connected;
+    private long lastSent;
+    private long lastReceived;
+    private long lastPing;
+    private long nextConnect;
+    private long reconnectDelay = MIN_RECONNECT_DELAY;
+    private volatile long publishedCount;
+    private volatile long droppedCount;
+    private volatile IOException failure;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param loop
+     *            event loop running network operations, shared with other
+     *            components
+     * @param fixTopic
+     *            topic fixes are published to, or <code>null</code> to only
+     *            publish sentences
+     * @param qos
+     *            quality of service: 0 or 1
+     * @param keepAlive
+     *            keepalive interval, in seconds
+     * @param maxInFlight
+     *            how many QoS 1 messages may be waiting for an
+     *            acknowledgement
+     */
+    public MqttPublisher(NioEventLoop loop, String host, int port, String clientId,
+            String topic, String fixTopic, int qos, int keepAlive, int maxInFlight) {
+        if (qos != 0 && qos != 1) {
+            throw new IllegalArgumentException("Unsupported QoS: " + qos);
+        }
+        if (keepAlive <= 0 || keepAlive > 0xffff) {
+            throw new IllegalArgumentException("Invalid keepalive: " + keepAlive);
+        }
+        address = InetSocketAddress.createUnresolved(host, port);
+        this.topic = utf8(topic);
+        this.fixTopic = fixTopic == null || fixTopic.length() == 0 ? null : utf8(fixTopic);
+        this.qos = qos;
+        this.keepAlive = keepAlive * 1000L;
+        final byte[] id = utf8(clientId);
+        if (id.length > 23) {
+            // Brokers are only required to accept short identifiers.
+            throw new IllegalArgumentException("MQTT client identifier is too long: " + clientId);
+        }
+        connectPacket = createConnectPacket(id, keepAlive);
+
+        final int n = qos == 0 ? 0 : maxInFlight;
+        inFlight = new byte[n][PACKET_SIZE];
+        inFlightLengths = new int[n];
+        inFlightIds = new int[n];
+        // Room for all in-flight messages, sent again after a reconnection.
+        out = ByteBuffer.allocate((n + 2) * PACKET_SIZE);
+        this.loop = loop;
+    }
+
+    private static byte[] utf8(String s) {
+        final byte[] b;
+        try {
+            b = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+        if (b.length == 0 || b.length > MAX_TOPIC) {
+            throw new IllegalArgumentException("Invalid MQTT string: " + s);
+        }
+        return b;
+    }
+
+    private static byte[] createConnectPacket(byte[] clientId, int keepAlive) {
+        final byte[] p = new byte[14 + clientId.length];
+        int i = 0;
+        p[i++] = (byte) CONNECT;
+        p[i++] = (byte) (12 + clientId.length);
+        p[i++] = 0;
+        p[i++] = 4;
+        p[i++] = 'M';
+        p[i++] = 'Q';
+        p[i++] = 'T';
+        p[i++] = 'T';
+        // Protocol level: 3.1.1.
+        p[i++] = 4;
+        // Flags: clean session.
+        p[i++] = 0x02;
+        p[i++] = (byte) (keepAlive >> 8);
+        p[i++] = (byte) keepAlive;
+        p[i++] = (byte) (clientId.length >> 8);
+        p[i++] = (byte) clientId.length;
+        System.arraycopy(clientId, 0, p, i, clientId.length);
+        return p;
+    }
+
+    /**
+     * Start publishing. This method must be called before the event loop is
+     * started, or from the event loop thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        loop.addTick(TICK_INTERVAL, tickTask);
+        running = true;
+    }
+
+    /**
+     * Stop publishing: the connection is closed. The event loop is not
+     * stopped.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        loop.execute(closeTask);
+    }
+
+    /**
+     * Get how many messages were published.
+     */
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    /**
+     * Get how many sentences were dropped.
+     */
+    public long getDroppedCount() {
+        return droppedCount + queue.getDroppedCount();
+    }
+
+    /**
+     * Get the last connection error, if any.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Publish a sentence. This method never blocks.
+     */
+    public void offer(NmeaSentence nmea) {
+        queue.offer(nmea.timestamp, nmea.data, 0, nmea.length);
+        scheduleDrain();
+    }
+
+    /**
+     * Publish a fix, as a JSON object. This method never blocks.
+     */
+    public void offerFix(Fix fix, NmeaRelayContext context) {
+        if (fixTopic == null) {
+            return;
+        }
+        synchronized (this) {
+            fixJson.setLength(0);
+            NmeaStreamServer.appendFixJson(fixJson, fix, context);
+            fixLength = Math.min(fixJson.length(), fixPayload.length);
+            for (int i = 0; i < fixLength; ++i) {
+                fixPayload[i] = (byte) fixJson.charAt(i);
+            }
+            fixPending = true;
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (running && drainScheduled.compareAndSet(false, true)) {
+            loop.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        final long now = System.currentTimeMillis();
+        while (queue.poll(sentence)) {
+            if (batchLength + sentence.length > batch.length) {
+                publishBatch();
+                if (batchLength + sentence.length > batch.length) {
+                    droppedCount += 1;
+                    continue;
+                }
+            }
+            if (batchLength == 0) {
+                batchStart = now;
+            }
+            System.arraycopy(sentence.data, 0, batch, batchLength, sentence.length);
+            batchLength += sentence.length;
+            lastAppend = now;
+        }
+        publishFix();
+    }
+
+    private void tick() {
+        final long now = System.currentTimeMillis();
+        if (key == null) {
+            if (now >= nextConnect && !resolving) {
+                // Resolve host name on each connection: its address may
+                // change.
+                resolving = true;
+                loop.resolve(address.getHostName(), address.getPort(), resolution);
+            }
+            return;
+        }
+        if (now - lastReceived > keepAlive + keepAlive / 2) {
+            // Broker did not answer to pings.
+            failure = new IOException("MQTT broker timeout");
+            NioEventLoop.close(key);
+            return;
+        }
+        if (!connected) {
+            return;
+        }
+        if (batchLength != 0
+                && (now - lastAppend >= EPOCH_GAP || now - batchStart >= MAX_BATCH_DELAY)) {
+            publishBatch();
+        }
+        publishFix();
+        // Ping when nothing was sent (as required by the broker), but also
+        // when nothing was received: with QoS 0, publishing alone gets no
+        // answer, and the connection would be seen as lost.
+        if ((now - lastSent >= keepAlive || now - lastReceived >= keepAlive)
+                && now - lastPing >= keepAlive / 2 && out.remaining() >= 2) {
+            out.put((byte) PINGREQ).put((byte) 0);
+            lastSent = lastPing = now;
+            flush();
+        }
+    }
+
+    private boolean canPublish() {
+        return connected && (qos == 0 || inFlightCount < inFlight.length)
+                && out.remaining() >= PACKET_SIZE;
+    }
+
+    private void publishBatch() {
+        if (batchLength != 0 && canPublish()) {
+            publish(topic, batch, batchLength);
+            batchLength = 0;
+        }
+    }
+
+    private void publishFix() {
+        synchronized (this) {
+            if (!fixPending || !canPublish()) {
+                return;
+            }
+            publish(fixTopic, fixPayload, fixLength);
+            fixPending = false;
+        }
+    }
+
+    private void publish(byte[] t, byte[] payload, int length) {
+        final byte[] p;
+        final int id;
+        if (qos == 0) {
+            p = packet;
+            id = 0;
+        } else {
+            p = inFlight[inFlightCount];
+            id = nextPacketId;
+            nextPacketId = nextPacketId == 0xffff ? 1 : nextPacketId + 1;
+        }
+
+        int i = 0;
+        p[i++] = (byte) (PUBLISH | qos << 1);
+        int remaining = 2 + t.length + (qos == 0 ? 0 : 2) + length;
+        do {
+            final int b = remaining & 0x7f;
+            remaining >>>= 7;
+            p[i++] = (byte) (remaining == 0 ? b : b | 0x80);
+        } while (remaining != 0);
+        p[i++] = (byte) (t.length >> 8);
+        p[i++] = (byte) t.length;
+        System.arraycopy(t, 0, p, i, t.length);
+        i += t.length;
+        if (qos != 0) {
+            p[i++] = (byte) (id >> 8);
+            p[i++] = (byte) id;
+            inFlightLengths[inFlightCount] = i + length;
+            inFlightIds[inFlightCount] = id;
+            inFlightCount += 1;
+        }
+        System.arraycopy(payload, 0, p, i, length);
+        i += length;
+
+        out.put(p, 0, i);
+        lastSent = System.currentTimeMillis();
+        publishedCount += 1;
+        flush();
+    }
+
+    private void connect(InetSocketAddress resolved) {
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            final Connection c = new Connection();
+            key = loop.register(ch, SelectionKey.OP_CONNECT, c);
+            lastReceived = System.currentTimeMillis();
+            lastPing = 0;
+            if (ch.connect(resolved)) {
+                c.onConnected();
+            }
+        } catch (IOException e) {
+            failure = e;
+            if (key != null) {
+                NioEventLoop.close(key);
+            } else {
+                if (ch != null) {
+                    try {
+                        ch.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+                scheduleReconnect();
+            }
+        }
+    }
+
+    private void scheduleReconnect() {
+        nextConnect = System.currentTimeMillis() + reconnectDelay;
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+    }
+
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            out.flip();
+            ((SocketChannel) key.channel()).write(out);
+            final boolean blocked = out.hasRemaining();
+            out.compact();
+            key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            failure = e;
+            NioEventLoop.close(key);
+        }
+    }
+
+    private void onPacket(int type, int start, int length) throws IOException {
+        switch (type & 0xf0) {
+        case CONNACK:
+            final int rc = length < 2 ? -1 : in.get(start + 1) & 0xff;
+            if (rc != 0) {
+                throw new IOException("MQTT connection refused: " + rc);
+            }
+            connected = true;
+            reconnectDelay = MIN_RECONNECT_DELAY;
+            // Send unacknowledged messages again.
+            for (int i = 0; i < inFlightCount; ++i) {
+                inFlight[i][0] |= DUP;
+                out.put(inFlight[i], 0, inFlightLengths[i]);
+            }
+            lastSent = System.currentTimeMillis();
+            flush();
+            break;
+        case PUBACK:
+            if (length < 2) {
+                break;
+            }
+            final int id = (in.get(start) & 0xff) << 8 | in.get(start + 1) & 0xff;
+            for (int i = 0; i < inFlightCount; ++i) {
+                if (inFlightIds[i] == id) {
+                    // Shift later messages, so that they are sent again in
+                    // order. The slot is moved to the end: no memory is
+                    // allocated.
+                    final int last = inFlightCount - 1;
+                    final byte[] p = inFlight[i];
+                    System.arraycopy(inFlight, i + 1, inFlight, i, last - i);
+                    System.arraycopy(inFlightLengths, i + 1, inFlightLengths, i, last - i);
+                    System.arraycopy(inFlightIds, i + 1, inFlightIds, i, last - i);
+                    inFlight[last] = p;
+                    inFlightCount = last;
+                    break;
+                }
+            }
+            break;
+        case PINGRESP:
+        default:
+            break;
+        }
+    }
+
+    private class Connection implements NioEventLoop.Handler {
+        @Override
+        public void onReady(SelectionKey k) throws IOException {
+            try {
+                if (k.isConnectable()) {
+                    ((SocketChannel) k.channel()).finishConnect();
+                    onConnected();
+                }
+                if (k.isValid() && k.isReadable()) {
+                    read();
+                }
+                if (k.isValid() && k.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey k) {
+            key = null;
+            connected = false;
+            scheduleReconnect();
+        }
+
+        public void onConnected() {
+            in.clear();
+            out.clear();
+            out.put(connectPacket);
+            lastSent = System.currentTimeMillis();
+            flush();
+        }
+
+        private void read() throws IOException {
+            if (((SocketChannel) key.channel()).read(in) < 0) {
+                throw new IOException("Connection closed by MQTT broker");
+            }
+            lastReceived = System.currentTimeMillis();
+            final int end = in.position();
+            int pos = 0;
+            while (true) {
+                // Fixed header: packet type, then remaining length.
+                int i = pos + 1;
+                int length = 0;
+                int shift = 0;
+                boolean complete = false;
+                while (i < end && shift <= 21) {
+                    final int b = in.get(i++);
+                    length |= (b & 0x7f) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                }
+                if (!complete || i + length > end) {
+                    if (i - pos + length > in.capacity()) {
+                        throw new IOException("MQTT packet is too large: " + length);
+                    }
+                    break;
+                }
+                onPacket(in.get(pos) & 0xff, i, length);
+                pos = i + length;
+            }
+            in.limit(end);
+            in.position(pos);
+            in.compact();
+
+            // Acknowledgements may have opened the in-flight window.
+            publishBatch();
+            publishFix();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Single-threaded NIO event loop.
+ * <p>
+ * Channels are registered with a handler, which is called from the event loop
+ * thread when the channel is ready. Tasks may be submitted from any thread:
+ * they are run on the event loop thread.
+ * <p>
+ * Failures of a handler, a task or a periodic task do not stop the event loop,
+ * which is shared by several components: the channel is closed (for a
+ * handler), and the error is kept (see {@link #getFailure()}).
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NioEventLoop {
+    /**
+     * Interface for channel events.
+     */
+    public interface Handler {
+        /**
+         * This method is called when the channel is ready for any of the
+         * operations it was registered for. If an exception is thrown, the
+         * channel is closed and {@link #onClose(SelectionKey)} is called.
+         */
+        void onReady(SelectionKey key) throws IOException;
+
+        /**
+         * This method is called when the channel is closed by the event loop.
+         */
+        void onClose(SelectionKey key);
+    }
+
+    /**
+     * Interface for host name resolutions.
+     */
+    public interface Resolution {
+        /**
+         * This method is called from the event loop thread when a host name
+         * was resolved.
+         * 
+         * @param address
+         *            resolved address, or <code>null</code> if the host name
+         *            cannot be resolved
+         */
+        void onResolved(InetSocketAddress address);
+    }
+
+    private static final long SELECT_FAILURE_DELAY = 100;
+    private final String name;
+    private final Selector selector;
+    private final List<Runnable> tasks = new ArrayList<Runnable>(4);
+    private final List<Runnable> runningTasks = new ArrayList<Runnable>(4);
+    private final List<Tick> ticks = new ArrayList<Tick>(4);
+    private volatile Thread thread;
+    private volatile Throwable failure;
+    private volatile long failureCount;
+
+    /**
+     * Task run periodically.
+     */
+    private static final class Tick {
+        public final long interval;
+        public final Runnable task;
+        public long next;
+
+        public Tick(long interval, Runnable task) {
+            this.interval = interval;
+            this.task = task;
+            this.next = System.currentTimeMillis() + interval;
+        }
+    }
+
+    public NioEventLoop(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+    }
+
+    /**
+     * Add a task run periodically on the event loop thread. This method must
+     * be called from the event loop thread, or before the event loop is
+     * started.
+     * 
+     * @param interval
+     *            interval between runs, in milliseconds
+     */
+    public void addTick(long interval, Runnable tick) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid tick interval: " + interval);
+        }
+        ticks.add(new Tick(interval, tick));
+    }
+
+    /**
+     * Remove a periodic task. This method must be called from the event loop
+     * thread, or before the event loop is started.
+     */
+    public void removeTick(Runnable tick) {
+        for (int i = ticks.size() - 1; i >= 0; --i) {
+            if (ticks.get(i).task == tick) {
+                ticks.remove(i);
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(name) {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        thread.start();
+    }
+
+    /**
+     * Stop the event loop: all registered channels are closed.
+     */
+    public synchronized void stop() {
+        final Thread t = thread;
+        if (t != null) {
+            thread = null;
+            selector.wakeup();
+            if (t != Thread.currentThread()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the last error caught by the event loop, if any.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Get how many errors were caught by the event loop.
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Tell if the current thread is the event loop thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the event loop thread.
+     */
+    public void execute(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Resolve a host name. The lookup may block for seconds: it is run on a
+     * background thread, and the result is handed to the event loop thread.
+     */
+    public void resolve(final String host, final int port, final Resolution resolution) {
+        final Thread t = new Thread(name + "/Resolver") {
+            @Override
+            public void run() {
+                final InetSocketAddress resolved = new InetSocketAddress(host, port);
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resolution.onResolved(resolved.isUnresolved() ? null : resolved);
+                    }
+                });
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Wake up the event loop thread, so that periodic tasks are run.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Register a channel. This method must be called from the event loop
+     * thread, or before the event loop is started.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws IOException {
+        channel.configureBlocking(false);
+        try {
+            return channel.register(selector, ops, handler);
+        } catch (ClosedChannelException e) {
+            throw new IOException("Channel is closed", e);
+        }
+    }
+
+    /**
+     * Close a channel registered with this event loop.
+     */
+    public static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+        ((Handler) key.attachment()).onClose(key);
+    }
+
+    private void loop() {
+        try {
+            while (thread != null) {
+                long timeout = 0;
+                if (!ticks.isEmpty()) {
+                    long next = Long.MAX_VALUE;
+                    for (int i = 0; i < ticks.size(); ++i) {
+                        next = Math.min(next, ticks.get(i).next);
+                    }
+                    timeout = Math.max(1, next - System.currentTimeMillis());
+                }
+                try {
+                    selector.select(timeout);
+                } catch (IOException e) {
+                    // Selected keys are still handled: pause so that a
+                    // failing selector does not keep the loop busy.
+                    onFailure(e);
+                    try {
+                        Thread.sleep(SELECT_FAILURE_DELAY);
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+
+                final Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    final SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        ((Handler) key.attachment()).onReady(key);
+                    } catch (IOException e) {
+                        close(key);
+                    } catch (RuntimeException e) {
+                        onFailure(e);
+                        if (key.isValid()) {
+                            close(key);
+                        }
+                    }
+                }
+
+                runTasks();
+                runTicks();
+            }
+        } finally {
+            for (final SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    close(key);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void runTicks() {
+        final long now = System.currentTimeMillis();
+        // Ticks may be removed while iterating.
+        for (int i = ticks.size() - 1; i >= 0; --i) {
+            if (i < ticks.size()) {
+                final Tick t = ticks.get(i);
+                if (now >= t.next) {
+                    t.next = now + t.interval;
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        onFailure(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                return;
+            }
+            runningTasks.addAll(tasks);
+            tasks.clear();
+        }
+        for (int i = 0; i < runningTasks.size(); ++i) {
+            try {
+                runningTasks.get(i).run();
+            } catch (RuntimeException e) {
+                onFailure(e);
+            }
+        }
+        runningTasks.clear();
+    }
+
+    private void onFailure(Throwable e) {
+        failure = e;
+        failureCount += 1;
+    }
+}
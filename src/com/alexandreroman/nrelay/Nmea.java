@@ -0,0 +1,179 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * NMEA utilities.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class Nmea {
+    private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'A', 'B', 'C', 'D', 'E', 'F' };
+
+    private Nmea() {
+    }
+
+    /**
+     * Compute the checksum of a sentence: this is the XOR of all characters
+     * between <code>$</code> (or <code>!</code>) and <code>*</code>.
+     * 
+     * @param sentence
+     *            sentence, starting with <code>$</code> or <code>!</code>
+     * @return checksum, or <code>-1</code> if no checksum delimiter was found
+     */
+    public static int checksum(CharSequence sentence) {
+        int sum = 0;
+        for (int i = 1; i < sentence.length(); ++i) {
+            final char c = sentence.charAt(i);
+            if (c == '*') {
+                return sum;
+            }
+            sum ^= c;
+        }
+        return -1;
+    }
+
+    /**
+     * Compute the checksum of a sentence stored as bytes.
+     *
+     * @param start
+     *            index of the first byte after <code>$</code>
+     * @param end
+     *            index of <code>*</code>
+     */
+    public static int checksum(byte[] sentence, int start, int end) {
+        int sum = 0;
+        for (int i = start; i < end; ++i) {
+            sum ^= sentence[i];
+        }
+        return sum & 0xff;
+    }
+
+    /**
+     * Find the checksum delimiter (<code>*</code>) of a sentence stored as
+     * bytes, looking only at the end of the sentence.
+     * 
+     * @return index of <code>*</code>, or <code>-1</code> if the sentence has
+     *         no checksum
+     */
+    public static int checksumIndex(byte[] sentence, int length) {
+        for (int i = length - 1; i >= 1 && i >= length - 5; --i) {
+            if (sentence[i] == '*') {
+                return i + 2 < length ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Update the checksum of a sentence stored as bytes, once some bytes were
+     * changed, added or removed. The checksum is a XOR: only changed bytes
+     * have to be accounted for, without reading the whole sentence again.
+     * 
+     * @param delta
+     *            XOR of all changed bytes, before and after the change
+     */
+    public static void updateChecksum(byte[] sentence, int length, int delta) {
+        if ((delta & 0xff) == 0) {
+            return;
+        }
+        final int i = checksumIndex(sentence, length);
+        if (i == -1) {
+            return;
+        }
+        final int hi = hexValue(sentence[i + 1]);
+        final int lo = hexValue(sentence[i + 2]);
+        if (hi >= 0 && lo >= 0) {
+            final int sum = (hi << 4 | lo) ^ delta;
+            sentence[i + 1] = hexDigit(sum >> 4);
+            sentence[i + 2] = hexDigit(sum);
+        }
+    }
+
+    /**
+     * Tell if the checksum of a sentence is valid.
+     */
+    public static boolean isValid(CharSequence sentence) {
+        final int sum = checksum(sentence);
+        if (sum == -1) {
+            return false;
+        }
+        final int i = indexOf(sentence, '*', 0);
+        if (i + 2 >= sentence.length()) {
+            return false;
+        }
+        return hexValue(sentence.charAt(i + 1)) == (sum >> 4)
+                && hexValue(sentence.charAt(i + 2)) == (sum & 0xf);
+    }
+
+    /**
+     * Write a sentence: <code>$</code>, sentence body, checksum and line
+     * terminator.
+     * 
+     * @param body
+     *            sentence body, without <code>$</code> and checksum
+     * @return sentence length
+     */
+    public static int encode(CharSequence body, byte[] dst, int offset) {
+        int i = offset;
+        dst[i++] = '$';
+        for (int j = 0; j < body.length(); ++j) {
+            dst[i++] = (byte) body.charAt(j);
+        }
+        final int sum = checksum(dst, offset + 1, i);
+        dst[i++] = '*';
+        dst[i++] = hexDigit(sum >> 4);
+        dst[i++] = hexDigit(sum);
+        dst[i++] = '\r';
+        dst[i++] = '\n';
+        return i - offset;
+    }
+
+    /**
+     * Get the hexadecimal digit (in upper case) for a value between 0 and 15.
+     */
+    public static byte hexDigit(int value) {
+        return HEX_DIGITS[value & 0xf];
+    }
+
+    /**
+     * Get the value of an hexadecimal digit, or <code>-1</code> if this is not
+     * an hexadecimal digit.
+     */
+    public static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    static int indexOf(CharSequence str, char c, int start) {
+        for (int i = start; i < str.length(); ++i) {
+            if (str.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
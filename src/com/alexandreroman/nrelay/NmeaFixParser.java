@@ -0,0 +1,225 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Decode position fixes from GGA and RMC sentences.
+ * <p>
+ * A fix is available each time a valid RMC sentence is parsed: this sentence
+ * holds both time and date. Altitude is taken from the GGA sentence of the
+ * same epoch, if any. Parsing does not allocate any object.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaFixParser {
+    private static final int MAX_FIELDS = 24;
+    private static final float KNOTS_TO_METERS_PER_SECOND = 1852f / 3600f;
+    private static final long DAY = 24 * 3600 * 1000L;
+    private final int[] fields = new int[MAX_FIELDS + 1];
+    private final Fix fix = new Fix();
+    private int fieldCount;
+    private long ggaTimeOfDay = -1;
+    private float ggaAltitude = Float.NaN;
+
+    /**
+     * Parse a sentence.
+     * 
+     * @return <code>true</code> if a new fix is available
+     */
+    public boolean parse(CharSequence sentence) {
+        if (sentence.length() < 7 || sentence.charAt(0) != '$' || sentence.charAt(1) == 'P'
+                || !Nmea.isValid(sentence)) {
+            return false;
+        }
+        split(sentence);
+        if (isType(sentence, 'G', 'G', 'A')) {
+            parseGga(sentence);
+        } else if (isType(sentence, 'R', 'M', 'C')) {
+            return parseRmc(sentence);
+        }
+        return false;
+    }
+
+    /**
+     * Get the last fix. This instance is reused by subsequent calls to
+     * {@link #parse(CharSequence)}.
+     */
+    public Fix getFix() {
+        return fix;
+    }
+
+    private static boolean isType(CharSequence sentence, char c1, char c2, char c3) {
+        return sentence.charAt(3) == c1 && sentence.charAt(4) == c2 && sentence.charAt(5) == c3;
+    }
+
+    private void split(CharSequence sentence) {
+        // Store the index of each field separator.
+        fieldCount = 0;
+        for (int i = 0; i < sentence.length() && fieldCount < MAX_FIELDS; ++i) {
+            final char c = sentence.charAt(i);
+            if (c == ',') {
+                fields[fieldCount++] = i;
+            } else if (c == '*') {
+                break;
+            }
+        }
+        fields[fieldCount] = Nmea.indexOf(sentence, '*', 0);
+    }
+
+    private int fieldStart(int field) {
+        return fields[field - 1] + 1;
+    }
+
+    private int fieldEnd(int field) {
+        return fields[field];
+    }
+
+    private boolean hasField(int field) {
+        return field <= fieldCount && fieldEnd(field) > fieldStart(field);
+    }
+
+    private void parseGga(CharSequence sentence) {
+        if (!hasField(1)) {
+            return;
+        }
+        ggaTimeOfDay = parseTimeOfDay(sentence, fieldStart(1), fieldEnd(1));
+        ggaAltitude = hasField(9) ? (float) parseDecimal(sentence, fieldStart(9), fieldEnd(9))
+                : Float.NaN;
+    }
+
+    private boolean parseRmc(CharSequence sentence) {
+        if (!hasField(9) || sentence.charAt(fieldStart(2)) != 'A' || !hasField(3)
+                || !hasField(5)) {
+            return false;
+        }
+        final long timeOfDay = parseTimeOfDay(sentence, fieldStart(1), fieldEnd(1));
+        final long date = parseDate(sentence, fieldStart(9), fieldEnd(9));
+        if (timeOfDay < 0 || date < 0) {
+            return false;
+        }
+
+        fix.reset();
+        fix.time = date + timeOfDay;
+        fix.latitude = parseCoordinate(sentence, 3);
+        fix.longitude = parseCoordinate(sentence, 5);
+        if (hasField(7)) {
+            fix.speed = (float) parseDecimal(sentence, fieldStart(7), fieldEnd(7))
+                    * KNOTS_TO_METERS_PER_SECOND;
+        }
+        if (hasField(8)) {
+            fix.bearing = (float) parseDecimal(sentence, fieldStart(8), fieldEnd(8));
+        }
+        if (timeOfDay == ggaTimeOfDay) {
+            fix.altitude = ggaAltitude;
+        }
+        return true;
+    }
+
+    private double parseCoordinate(CharSequence sentence, int field) {
+        // Coordinates are formatted as (d)ddmm.mmmm.
+        final double value = parseDecimal(sentence, fieldStart(field), fieldEnd(field));
+        final double degrees = Math.floor(value / 100);
+        final double coord = degrees + (value - degrees * 100) / 60;
+        final char hemisphere = hasField(field + 1) ? sentence.charAt(fieldStart(field + 1))
+                : 'N';
+        return hemisphere == 'S' || hemisphere == 'W' ? -coord : coord;
+    }
+
+    private static long parseTimeOfDay(CharSequence str, int start, int end) {
+        // Time is formatted as hhmmss(.ss).
+        if (end - start < 6) {
+            return -1;
+        }
+        final int h = parseInt(str, start, start + 2);
+        final int m = parseInt(str, start + 2, start + 4);
+        final double s = parseDecimal(str, start + 4, end);
+        if (h < 0 || m < 0 || Double.isNaN(s)) {
+            return -1;
+        }
+        return (h * 3600 + m * 60) * 1000L + Math.round(s * 1000);
+    }
+
+    private static long parseDate(CharSequence str, int start, int end) {
+        // Date is formatted as ddmmyy.
+        if (end - start != 6) {
+            return -1;
+        }
+        final int d = parseInt(str, start, start + 2);
+        final int m = parseInt(str, start + 2, start + 4);
+        int y = parseInt(str, start + 4, start + 6);
+        if (d < 1 || m < 1 || m > 12 || y < 0) {
+            return -1;
+        }
+        y += y < 80 ? 2000 : 1900;
+        return daysFromCivil(y, m, d) * DAY;
+    }
+
+    /**
+     * Get the number of days since January 1, 1970 for a date in the
+     * Gregorian calendar.
+     */
+    static long daysFromCivil(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        final int era = y / 400;
+        final int yoe = y - era * 400;
+        final int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        final int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    private static int parseInt(CharSequence str, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; ++i) {
+            final char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    static double parseDecimal(CharSequence str, int start, int end) {
+        if (start >= end) {
+            return Double.NaN;
+        }
+        boolean negative = false;
+        int i = start;
+        if (str.charAt(i) == '-') {
+            negative = true;
+            i += 1;
+        }
+        long value = 0;
+        long scale = 1;
+        boolean fraction = false;
+        for (; i < end; ++i) {
+            final char c = str.charAt(i);
+            if (c == '.' && !fraction) {
+                fraction = true;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (fraction) {
+                    scale *= 10;
+                }
+            } else {
+                return Double.NaN;
+            }
+        }
+        final double d = (double) value / scale;
+        return negative ? -d : d;
+    }
+}
@@ -0,0 +1,83 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Split a byte stream into NMEA sentences.
+ * <p>
+ * Sentences are delimited by line feeds. Lines longer than
+ * {@link NmeaSentence#MAX_LENGTH} are dropped. Empty lines are skipped.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaFramer {
+    private final byte[] line = new byte[NmeaSentence.MAX_LENGTH];
+    private int length;
+    private boolean overflow;
+    private long overflowCount;
+
+    /**
+     * Read the next sentence from a buffer.
+     * 
+     * @param in
+     *            bytes to read, in read mode
+     * @param sentence
+     *            where to copy the sentence, including the line terminator
+     * @return <code>false</code> if more bytes are needed
+     */
+    public boolean next(ByteBuffer in, NmeaSentence sentence) {
+        while (in.hasRemaining()) {
+            final byte b = in.get();
+            if (b == '\n') {
+                final boolean complete = !overflow && length != 0;
+                if (complete) {
+                    if (line[length - 1] != '\r') {
+                        // Sentences are always terminated by CR LF.
+                        line[length++] = '\r';
+                    }
+                    line[length++] = '\n';
+                    sentence.set(System.currentTimeMillis(), line, 0, length);
+                }
+                length = 0;
+                overflow = false;
+                if (complete && sentence.length > 2) {
+                    return true;
+                }
+            } else if (length < line.length - 2) {
+                line[length++] = b;
+            } else if (!overflow) {
+                overflow = true;
+                overflowCount += 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get how many lines were dropped because they were too long.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    public void reset() {
+        length = 0;
+        overflow = false;
+    }
+}
@@ -0,0 +1,497 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * NMEA sentences read from the network, such as AIS receivers or wind and
+ * depth instruments.
+ * <p>
+ * An input may be:
+ * <ul>
+ * <li><code>tcp:host:port</code>: a TCP server, connected to (the connection
+ * is opened again when lost);</li>
+ * <li><code>listen:port</code>: a TCP port, listened to for instruments
+ * pushing sentences;</li>
+ * <li><code>udp:port</code>: a UDP port, receiving datagrams (broadcast or
+ * not).</li>
+ * </ul>
+ * Options may be appended: <code>?rate=N</code> limits an input to N
+ * sentences per second (extra sentences are dropped), and
+ * <code>?priority=N</code> sets its priority (see {@link NmeaMergeStage}).
+ * <p>
+ * Sentences are added to the relay queue, tagged with their input number
+ * (starting from 1), where they are merged with sentences from the phone. All
+ * network operations are run on an event loop, which may be shared with other
+ * components.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaInputs {
+    private static final long RECONNECT_DELAY = 5000;
+    private static final long TICK_INTERVAL = 1000;
+
+    /**
+     * Input kind.
+     */
+    public enum Kind {
+        TCP, LISTEN, UDP
+    }
+
+    /**
+     * Input settings.
+     */
+    public static final class Spec {
+        public final Kind kind;
+        public final String host;
+        public final int port;
+        public final int rate;
+        public final int priority;
+
+        public Spec(Kind kind, String host, int port, int rate, int priority) {
+            this.kind = kind;
+            this.host = host;
+            this.port = port;
+            this.rate = rate;
+            this.priority = priority;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder buf = new StringBuilder(32);
+            buf.append(kind.name().toLowerCase(Locale.ENGLISH)).append(':');
+            if (host != null) {
+                buf.append(host).append(':');
+            }
+            buf.append(port);
+            return buf.toString();
+        }
+    }
+
+    private final NioEventLoop loop;
+    private final NmeaQueue queue;
+    private final Input[] inputs;
+    private final ByteBuffer in = ByteBuffer.allocate(2048);
+    private final NmeaSentence sentence = new NmeaSentence();
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            final long now = System.currentTimeMillis();
+            for (final Input input : inputs) {
+                if (input.spec.kind == Kind.TCP && input.keys.isEmpty()
+                        && now >= input.nextConnect) {
+                    input.connect();
+                }
+            }
+        }
+    };
+    private final Runnable openTask = new Runnable() {
+        @Override
+        public void run() {
+            for (final Input input : inputs) {
+                input.open();
+            }
+            loop.addTick(TICK_INTERVAL, tickTask);
+        }
+    };
+    private final Runnable closeTask = new Runnable() {
+        @Override
+        public void run() {
+            loop.removeTick(tickTask);
+            for (final Input input : inputs) {
+                input.closed = true;
+                for (int i = input.keys.size() - 1; i >= 0; --i) {
+                    NioEventLoop.close(input.keys.get(i));
+                }
+            }
+        }
+    };
+    private boolean running;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param loop
+     *            event loop running network operations, shared with other
+     *            components
+     * @param queue
+     *            queue sentences are added to
+     */
+    public NmeaInputs(NioEventLoop loop, List<Spec> specs, NmeaQueue queue) {
+        this.loop = loop;
+        this.queue = queue;
+        inputs = new Input[specs.size()];
+        for (int i = 0; i < inputs.length; ++i) {
+            inputs[i] = new Input(i + 1, specs.get(i));
+        }
+    }
+
+    /**
+     * Parse an input specification, such as <code>udp:10110?rate=5</code>.
+     * 
+     * @throws IllegalArgumentException
+     *             if the specification is invalid
+     */
+    public static Spec parse(String spec) {
+        String s = spec.trim();
+        int rate = 0;
+        int priority = 0;
+        final int query = s.indexOf('?');
+        if (query != -1) {
+            for (final String option : s.substring(query + 1).split("&")) {
+                final int eq = option.indexOf('=');
+                final String name = eq == -1 ? option : option.substring(0, eq);
+                final int value = eq == -1 ? -1 : Integer.parseInt(option.substring(eq + 1));
+                if ("rate".equals(name) && value >= 0) {
+                    rate = value;
+                } else if ("priority".equals(name) && value >= 0) {
+                    priority = value;
+                } else {
+                    throw new IllegalArgumentException("Invalid input option: " + option);
+                }
+            }
+            s = s.substring(0, query);
+        }
+        final int colon = s.indexOf(':');
+        final int lastColon = s.lastIndexOf(':');
+        if (colon < 1 || lastColon == s.length() - 1) {
+            throw new IllegalArgumentException("Invalid input: " + spec);
+        }
+        final String kind = s.substring(0, colon).toLowerCase(Locale.ENGLISH);
+        final int port = Integer.parseInt(s.substring(lastColon + 1));
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid input port: " + spec);
+        }
+        if ("tcp".equals(kind) && lastColon > colon + 1) {
+            return new Spec(Kind.TCP, s.substring(colon + 1, lastColon), port, rate, priority);
+        }
+        if (colon == lastColon) {
+            if ("listen".equals(kind)) {
+                return new Spec(Kind.LISTEN, null, port, rate, priority);
+            }
+            if ("udp".equals(kind)) {
+                return new Spec(Kind.UDP, null, port, rate, priority);
+            }
+        }
+        throw new IllegalArgumentException("Invalid input: " + spec);
+    }
+
+    /**
+     * Start reading inputs. This method may be called from any thread: inputs
+     * are opened on the event loop thread. Host names are resolved on a
+     * background thread. Inputs which cannot be opened are skipped.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        loop.execute(openTask);
+        running = true;
+    }
+
+    /**
+     * Stop reading inputs: all connections are closed. The event loop is not
+     * stopped.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        loop.execute(closeTask);
+    }
+
+    public int getInputCount() {
+        return inputs.length;
+    }
+
+    public Spec getSpec(int source) {
+        return inputs[source - 1].spec;
+    }
+
+    /**
+     * Get how many sentences were received from an input.
+     */
+    public long getReceivedCount(int source) {
+        return inputs[source - 1].receivedCount;
+    }
+
+    /**
+     * Get how many sentences from an input were dropped by its rate limit.
+     */
+    public long getDroppedCount(int source) {
+        return inputs[source - 1].droppedCount;
+    }
+
+    /**
+     * Get the last error of an input, if any.
+     */
+    public IOException getFailure(int source) {
+        return inputs[source - 1].failure;
+    }
+
+    private class Input implements NioEventLoop.Resolution {
+        public final int source;
+        public final Spec spec;
+        public final List<SelectionKey> keys = new ArrayList<SelectionKey>(2);
+        public long nextConnect;
+        public boolean closed;
+        public boolean resolving;
+        public volatile long receivedCount;
+        public volatile long droppedCount;
+        public volatile IOException failure;
+        // Rate limit budget, in thousandths of a sentence.
+        private long budget;
+        private long budgetTime;
+
+        public Input(int source, Spec spec) {
+            this.source = source;
+            this.spec = spec;
+            this.budget = spec.rate * 1000L;
+        }
+
+        public void open() {
+            try {
+                switch (spec.kind) {
+                case TCP:
+                    connect();
+                    break;
+                case LISTEN:
+                    final ServerSocketChannel server = ServerSocketChannel.open();
+                    try {
+                        server.socket().setReuseAddress(true);
+                        server.socket().bind(new InetSocketAddress(spec.port));
+                        keys.add(loop.register(server, SelectionKey.OP_ACCEPT, new Acceptor(
+                                this)));
+                    } catch (IOException e) {
+                        server.close();
+                        throw e;
+                    }
+                    break;
+                case UDP:
+                    final DatagramChannel ch = DatagramChannel.open();
+                    try {
+                        ch.socket().setReuseAddress(true);
+                        ch.socket().setBroadcast(true);
+                        ch.socket().bind(new InetSocketAddress(spec.port));
+                        keys.add(loop.register(ch, SelectionKey.OP_READ, new Datagrams(this)));
+                    } catch (IOException e) {
+                        ch.close();
+                        throw e;
+                    }
+                    break;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        public void connect() {
+            if (closed || resolving) {
+                return;
+            }
+            nextConnect = System.currentTimeMillis() + RECONNECT_DELAY;
+            // Resolve host name on each connection: its address may change.
+            resolving = true;
+            loop.resolve(spec.host, spec.port, this);
+        }
+
+        @Override
+        public void onResolved(InetSocketAddress address) {
+            resolving = false;
+            if (closed) {
+                return;
+            }
+            if (address == null) {
+                failure = new IOException("Cannot resolve input address: " + spec);
+                return;
+            }
+            SocketChannel ch = null;
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                // The channel is only registered once connect() succeeded: a
+                // key left without a pending connection would fail the loop.
+                final boolean connected = ch.connect(address);
+                keys.add(loop.register(ch, connected ? SelectionKey.OP_READ
+                        : SelectionKey.OP_CONNECT, new Connection(this)));
+                ch = null;
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                if (ch != null) {
+                    // Closing the channel cancels its key, if any.
+                    try {
+                        ch.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read sentences from a buffer, and add them to the queue.
+         */
+        public void read(ByteBuffer buf, NmeaFramer framer) {
+            while (framer.next(buf, sentence)) {
+                receivedCount += 1;
+                if (spec.rate != 0 && !acquire(sentence.timestamp)) {
+                    droppedCount += 1;
+                    continue;
+                }
+                sentence.source = source;
+                queue.offer(sentence);
+            }
+        }
+
+        private boolean acquire(long now) {
+            // Token bucket: up to a second of sentences may be sent at once.
+            final long max = spec.rate * 1000L;
+            budget = Math.min(max, budget + Math.max(0, now - budgetTime) * spec.rate);
+            budgetTime = now;
+            if (budget < 1000) {
+                return false;
+            }
+            budget -= 1000;
+            return true;
+        }
+    }
+
+    private class Acceptor implements NioEventLoop.Handler {
+        private final Input input;
+
+        public Acceptor(Input input) {
+            this.input = input;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            final SocketChannel ch;
+            try {
+                ch = ((ServerSocketChannel) key.channel()).accept();
+            } catch (IOException e) {
+                return;
+            }
+            if (ch == null) {
+                return;
+            }
+            try {
+                input.keys.add(loop.register(ch, SelectionKey.OP_READ, new Connection(input)));
+            } catch (IOException e) {
+                ch.close();
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+            input.keys.remove(key);
+        }
+    }
+
+    private class Connection implements NioEventLoop.Handler {
+        private final Input input;
+        private final NmeaFramer framer = new NmeaFramer();
+
+        public Connection(Input input) {
+            this.input = input;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            final SocketChannel ch = (SocketChannel) key.channel();
+            if (key.isConnectable()) {
+                try {
+                    ch.finishConnect();
+                } catch (IOException e) {
+                    input.failure = e;
+                    throw e;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            while (true) {
+                in.clear();
+                final int n;
+                try {
+                    n = ch.read(in);
+                } catch (IOException e) {
+                    input.failure = e;
+                    throw e;
+                }
+                if (n < 0) {
+                    NioEventLoop.close(key);
+                    return;
+                }
+                if (n == 0) {
+                    return;
+                }
+                in.flip();
+                input.read(in, framer);
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+            input.keys.remove(key);
+        }
+    }
+
+    private class Datagrams implements NioEventLoop.Handler {
+        private final Input input;
+        private final NmeaFramer framer = new NmeaFramer();
+
+        public Datagrams(Input input) {
+            this.input = input;
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            final DatagramChannel ch = (DatagramChannel) key.channel();
+            while (true) {
+                in.clear();
+                if (ch.receive(in) == null) {
+                    return;
+                }
+                in.flip();
+                input.read(in, framer);
+                // Datagrams hold whole sentences: the line terminator may be
+                // missing from the last one.
+                in.clear();
+                in.put((byte) '\n');
+                in.flip();
+                input.read(in, framer);
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+            input.keys.remove(key);
+        }
+    }
+}
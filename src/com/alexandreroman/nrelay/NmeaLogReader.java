@@ -0,0 +1,233 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read NMEA sentences from a recorded log file.
+ * <p>
+ * Each line holds a single sentence, optionally prefixed by the timestamp it
+ * was received at (in milliseconds) followed by a tab character. Lines which
+ * are not NMEA sentences are skipped. Sentences without a timestamp inherit
+ * the timestamp of the previous sentence.
+ * <p>
+ * Log files compressed with gzip, such as segments written by
+ * {@link NmeaRecorder}, are detected and decompressed while reading. A
+ * compressed log file which ends with an incomplete block (a segment being
+ * written, or left by a crash) is read up to this block.
+ * <p>
+ * Uncompressed log files are memory-mapped: this class does not rely on any
+ * Android API.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaLogReader implements Closeable {
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private final File logFile;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final byte[] chunk;
+    private InputStream gzipIn;
+    private int chunkPos;
+    private int chunkLimit;
+    private final StringBuilder line = new StringBuilder(96);
+    private long timestamp;
+    private boolean timestamped;
+    private String sentence;
+
+    public NmeaLogReader(File logFile) throws IOException {
+        this.logFile = logFile;
+        file = new RandomAccessFile(logFile, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("NMEA log file is too large: " + logFile);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        if (buffer.remaining() >= 2
+                && ((buffer.get(0) & 0xff) | (buffer.get(1) & 0xff) << 8) == GZIP_MAGIC) {
+            chunk = new byte[8192];
+            try {
+                gzipIn = new GZIPInputStream(new FileInputStream(logFile), chunk.length);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        } else {
+            chunk = null;
+        }
+    }
+
+    /**
+     * Read the next byte.
+     * 
+     * @return <code>-1</code> if the end of file is reached
+     */
+    private int read() {
+        if (chunk == null) {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+        if (chunkPos == chunkLimit) {
+            if (gzipIn == null) {
+                return -1;
+            }
+            int n;
+            try {
+                n = gzipIn.read(chunk, 0, chunk.length);
+            } catch (IOException e) {
+                // Incomplete block, or corrupted data: stop there.
+                n = -1;
+            }
+            if (n <= 0) {
+                closeGzip();
+                return -1;
+            }
+            chunkPos = 0;
+            chunkLimit = n;
+        }
+        return chunk[chunkPos++] & 0xff;
+    }
+
+    private void closeGzip() {
+        if (gzipIn != null) {
+            try {
+                gzipIn.close();
+            } catch (IOException ignore) {
+            }
+            gzipIn = null;
+        }
+    }
+
+    /**
+     * Read the next sentence from the log file.
+     * 
+     * @return <code>false</code> if the end of file is reached
+     */
+    public boolean next() {
+        boolean eof = false;
+        while (!eof) {
+            line.setLength(0);
+            long lineTimestamp = 0;
+            boolean lineTimestamped = false;
+            int b;
+            while ((b = read()) != -1) {
+                final char c = (char) b;
+                if (c == '\n') {
+                    break;
+                }
+                if (c == '\t' && !lineTimestamped && line.length() != 0) {
+                    lineTimestamp = parseTimestamp(line);
+                    if (lineTimestamp >= 0) {
+                        lineTimestamped = true;
+                        line.setLength(0);
+                        continue;
+                    }
+                }
+                if (c != '\r') {
+                    line.append(c);
+                }
+            }
+            eof = b == -1;
+            if (line.length() == 0 || (line.charAt(0) != '$' && line.charAt(0) != '!')) {
+                continue;
+            }
+            if (lineTimestamped) {
+                timestamp = lineTimestamp;
+                timestamped = true;
+            }
+            // Sentences are relayed as they were received from the GPS,
+            // including the line terminator.
+            sentence = line.append("\r\n").toString();
+            return true;
+        }
+        sentence = null;
+        return false;
+    }
+
+    private static long parseTimestamp(CharSequence str) {
+        long value = 0;
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Get the timestamp of the current sentence, in milliseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Tell if a timestamp was read from the log file for the current
+     * sentence.
+     */
+    public boolean isTimestamped() {
+        return timestamped;
+    }
+
+    /**
+     * Get the current sentence, including the line terminator.
+     */
+    public String getSentence() {
+        return sentence;
+    }
+
+    /**
+     * Go back to the beginning of the log file.
+     */
+    public void rewind() {
+        buffer.rewind();
+        if (chunk != null) {
+            closeGzip();
+            chunkPos = chunkLimit = 0;
+            try {
+                gzipIn = new GZIPInputStream(new FileInputStream(logFile), chunk.length);
+            } catch (IOException e) {
+                // Read as an empty file.
+                gzipIn = null;
+            }
+        }
+        timestamp = 0;
+        timestamped = false;
+        sentence = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeGzip();
+        file.close();
+    }
+}
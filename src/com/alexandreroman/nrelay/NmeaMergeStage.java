@@ -0,0 +1,162 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Pipeline stage merging sentences from several sources (the phone and
+ * network inputs) into a single feed.
+ * <p>
+ * Each source has a priority. For each sentence type (such as
+ * <code>GGA</code>, whatever the talker), only sentences from the source
+ * with the highest priority are kept: sentences from sources with a lower
+ * priority are dropped, until the source with the highest priority has not
+ * sent this sentence type for a few seconds. Sources with the same priority
+ * are all kept.
+ * <p>
+ * Identical sentences received from different sources within a short time,
+ * such as instruments bridged to several networks, are only kept once.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaMergeStage implements RelayStage {
+    private static final long SOURCE_TIMEOUT = 3000;
+    private static final long DUPLICATE_WINDOW = 1000;
+    private static final int RECENT_SIZE = 64;
+    private static final int TYPE_TABLE_SIZE = 128;
+    private final int[] priorities;
+    // Recently accepted sentences, for detecting duplicates.
+    private final int[] recentHashes = new int[RECENT_SIZE];
+    private final int[] recentSources = new int[RECENT_SIZE];
+    private final long[] recentTimes = new long[RECENT_SIZE];
+    private int recentNext;
+    // Source with the highest priority for each sentence type (open
+    // addressing, with linear probing).
+    private final int[] types = new int[TYPE_TABLE_SIZE];
+    private final int[] typePriorities = new int[TYPE_TABLE_SIZE];
+    private final long[] typeTimes = new long[TYPE_TABLE_SIZE];
+    private volatile long duplicateCount;
+    private volatile long suppressedCount;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param priorities
+     *            priority of each source, indexed by
+     *            {@link NmeaSentence#source}
+     */
+    public NmeaMergeStage(int[] priorities) {
+        this.priorities = priorities.clone();
+        for (int i = 0; i < RECENT_SIZE; ++i) {
+            recentTimes[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    @Override
+    public boolean process(NmeaSentence nmea) {
+        final long now = System.currentTimeMillis();
+        final int source = nmea.source;
+        final int hash = hash(nmea);
+        for (int i = 0; i < RECENT_SIZE; ++i) {
+            if (recentHashes[i] == hash && recentSources[i] != source
+                    && now - recentTimes[i] <= DUPLICATE_WINDOW) {
+                duplicateCount += 1;
+                return false;
+            }
+        }
+
+        final int type = type(nmea);
+        if (type != 0) {
+            final int priority = source < priorities.length ? priorities[source] : 0;
+            final int slot = slot(type);
+            if (slot != -1) {
+                if (types[slot] == type && typePriorities[slot] > priority
+                        && now - typeTimes[slot] < SOURCE_TIMEOUT) {
+                    suppressedCount += 1;
+                    return false;
+                }
+                types[slot] = type;
+                typePriorities[slot] = priority;
+                typeTimes[slot] = now;
+            }
+        }
+
+        recentHashes[recentNext] = hash;
+        recentSources[recentNext] = source;
+        recentTimes[recentNext] = now;
+        recentNext = (recentNext + 1) % RECENT_SIZE;
+        return true;
+    }
+
+    /**
+     * Get how many duplicate sentences were dropped.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Get how many sentences were dropped because a source with a higher
+     * priority sent the same sentence type.
+     */
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * Find the slot of a sentence type, or a free slot for it. Return
+     * <code>-1</code> if the table is full.
+     */
+    private int slot(int type) {
+        int i = (type * 0x9e3779b9 >>> 25) % TYPE_TABLE_SIZE;
+        for (int n = 0; n < TYPE_TABLE_SIZE; ++n) {
+            if (types[i] == type || types[i] == 0) {
+                return i;
+            }
+            i = (i + 1) % TYPE_TABLE_SIZE;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the sentence type, without talker: <code>$GPGGA</code> and
+     * <code>$GNGGA</code> have the same type. Proprietary sentences are typed
+     * by manufacturer and sentence. Return 0 if the sentence cannot be typed.
+     */
+    private static int type(NmeaSentence nmea) {
+        final byte[] d = nmea.data;
+        if (nmea.length < 7 || (d[0] != '$' && d[0] != '!')) {
+            return 0;
+        }
+        if (d[1] == 'P') {
+            return 'P' << 24 | (d[2] & 0xff) << 16 | (d[3] & 0xff) << 8 | (d[4] & 0xff);
+        }
+        return (d[3] & 0xff) << 16 | (d[4] & 0xff) << 8 | (d[5] & 0xff);
+    }
+
+    private static int hash(NmeaSentence nmea) {
+        int end = nmea.length;
+        while (end > 0 && (nmea.data[end - 1] == '\r' || nmea.data[end - 1] == '\n')) {
+            end -= 1;
+        }
+        // FNV-1a
+        int h = 0x811c9dc5;
+        for (int i = 0; i < end; ++i) {
+            h = (h ^ (nmea.data[i] & 0xff)) * 0x01000193;
+        }
+        return h;
+    }
+}
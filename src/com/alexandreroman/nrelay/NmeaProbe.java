@@ -0,0 +1,74 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Probe sentences inserted periodically in a relayed stream, so that
+ * consumers can measure loss and latency (see <code>ProbeReceiver</code>, in
+ * the benchmarks).
+ * <p>
+ * A probe is a proprietary sentence:
+ * <code>$PNRLY,&lt;sequence&gt;,&lt;received&gt;,&lt;sent&gt;*hh</code>,
+ * where <code>received</code> is the time the last relayed sentence was
+ * received at, and <code>sent</code> is the time the probe was handed to the
+ * destination (milliseconds since the epoch). Each destination has its own
+ * sequence, starting at 1.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaProbe {
+    /**
+     * Probe sentence prefix.
+     */
+    public static final String PREFIX = "$PNRLY,";
+    private final StringBuilder body = new StringBuilder(48);
+    private long nextProbe;
+    private long sequence;
+
+    /**
+     * Build the next probe, if one is due.
+     * 
+     * @param interval
+     *            probe interval in milliseconds, or <code>0</code> to disable
+     *            probes
+     * @param received
+     *            time the last relayed sentence was received at
+     * @param probe
+     *            sentence set to the probe
+     * @return <code>false</code> if no probe is due
+     */
+    public boolean next(long interval, long received, NmeaSentence probe) {
+        if (interval <= 0) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        if (now < nextProbe) {
+            return false;
+        }
+        nextProbe = now + interval;
+        sequence += 1;
+        body.setLength(0);
+        body.append(PREFIX, 1, PREFIX.length()).append(sequence).append(',').append(received)
+                .append(',').append(now);
+        probe.length = Nmea.encode(body, probe.data, 0);
+        probe.timestamp = now;
+        probe.source = NmeaSentence.SOURCE_PHONE;
+        return true;
+    }
+}
@@ -0,0 +1,170 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Bounded queue of NMEA sentences.
+ * <p>
+ * Sentences are copied to preallocated slots: no memory is allocated when
+ * sentences are added or removed. Adding a sentence never blocks: when the
+ * queue is full, the sentence is dropped.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaQueue {
+    private final NmeaSentence[] slots;
+    private int head;
+    private int count;
+    private long dropped;
+
+    public NmeaQueue(int capacity) {
+        slots = new NmeaSentence[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new NmeaSentence();
+        }
+    }
+
+    /**
+     * Add a sentence to this queue.
+     * 
+     * @return <code>false</code> if the queue is full
+     */
+    public synchronized boolean offer(long timestamp, CharSequence nmea) {
+        final NmeaSentence slot = nextSlot();
+        if (slot == null) {
+            return false;
+        }
+        slot.set(timestamp, nmea);
+        commit();
+        return true;
+    }
+
+    /**
+     * Add a sentence to this queue.
+     * 
+     * @return <code>false</code> if the queue is full
+     */
+    public synchronized boolean offer(long timestamp, byte[] nmea, int offset, int length) {
+        final NmeaSentence slot = nextSlot();
+        if (slot == null) {
+            return false;
+        }
+        slot.set(timestamp, nmea, offset, length);
+        commit();
+        return true;
+    }
+
+    /**
+     * Add a copy of a sentence to this queue.
+     * 
+     * @return <code>false</code> if the queue is full
+     */
+    public synchronized boolean offer(NmeaSentence nmea) {
+        final NmeaSentence slot = nextSlot();
+        if (slot == null) {
+            return false;
+        }
+        slot.set(nmea);
+        commit();
+        return true;
+    }
+
+    private NmeaSentence nextSlot() {
+        if (count == slots.length) {
+            dropped += 1;
+            return null;
+        }
+        return slots[(head + count) % slots.length];
+    }
+
+    private void commit() {
+        count += 1;
+        if (count == 1) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Remove the first sentence from this queue, waiting if necessary.
+     * 
+     * @param sentence
+     *            where to copy the sentence
+     */
+    public synchronized void take(NmeaSentence sentence) throws InterruptedException {
+        while (count == 0) {
+            wait();
+        }
+        poll(sentence);
+    }
+
+    /**
+     * Remove the first sentence from this queue, waiting up to a given time
+     * if necessary.
+     * 
+     * @param sentence
+     *            where to copy the sentence
+     * @param timeout
+     *            how long to wait, in milliseconds, or <code>0</code> to wait
+     *            forever
+     * @return <code>false</code> if no sentence was available before the
+     *         timeout
+     */
+    public synchronized boolean take(NmeaSentence sentence, long timeout)
+            throws InterruptedException {
+        if (timeout == 0) {
+            take(sentence);
+            return true;
+        }
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (count == 0) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return poll(sentence);
+    }
+
+    /**
+     * Remove the first sentence from this queue, if any.
+     *
+     * @param sentence
+     *            where to copy the sentence
+     * @return <code>false</code> if this queue is empty
+     */
+    public synchronized boolean poll(NmeaSentence sentence) {
+        if (count == 0) {
+            return false;
+        }
+        sentence.set(slots[head]);
+        head = (head + 1) % slots.length;
+        count -= 1;
+        return true;
+    }
+
+    /**
+     * Get how many sentences were dropped because this queue was full.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    public synchronized void clear() {
+        head = count = 0;
+    }
+}
@@ -0,0 +1,285 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Record NMEA sentences to log files.
+ * <p>
+ * Sentences are written to segment files, using the format read by
+ * {@link NmeaLogReader}. A new segment is started when the current one is too
+ * large or too old. Segments may be compressed.
+ * <p>
+ * Sentences are handed off to a background thread through a bounded buffer:
+ * recording never blocks the caller. When the buffer is full, sentences are
+ * dropped.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaRecorder {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL = 1000;
+    private final File dir;
+    private final long maxSegmentSize;
+    private final long maxSegmentDuration;
+    private final boolean gzip;
+    private final long[] timestamps;
+    private final String[] sentences;
+    private int head;
+    private int count;
+    private long dropped;
+    private Thread writer;
+    private volatile IOException failure;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param dir
+     *            where to write segment files
+     * @param maxSegmentSize
+     *            maximum segment size, in bytes (before compression)
+     * @param maxSegmentDuration
+     *            maximum segment duration, in milliseconds
+     * @param gzip
+     *            compress segment files
+     * @param capacity
+     *            how many sentences may be waiting to be written
+     */
+    public NmeaRecorder(File dir, long maxSegmentSize, long maxSegmentDuration, boolean gzip,
+            int capacity) {
+        if (maxSegmentSize <= 0 || maxSegmentDuration <= 0) {
+            throw new IllegalArgumentException("Invalid segment size or duration");
+        }
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentDuration = maxSegmentDuration;
+        this.gzip = gzip;
+        timestamps = new long[capacity];
+        sentences = new String[capacity];
+    }
+
+    public synchronized void start() throws IOException {
+        if (writer != null) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory: " + dir);
+        }
+        writer = new Thread(new Writer(), "NRelay/Recorder");
+        writer.start();
+    }
+
+    /**
+     * Stop recording. Pending sentences are written before segment is closed.
+     */
+    public void stop() {
+        final Thread t;
+        synchronized (this) {
+            t = writer;
+            writer = null;
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Record a sentence. This method never blocks.
+     */
+    public synchronized void record(long timestamp, String nmea) {
+        if (count == sentences.length) {
+            dropped += 1;
+            return;
+        }
+        final int i = (head + count) % sentences.length;
+        timestamps[i] = timestamp;
+        sentences[i] = nmea;
+        count += 1;
+        if (count == 1) {
+            notify();
+        }
+    }
+
+    /**
+     * Get how many sentences were dropped because the writer thread could
+     * not keep up.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Get the error which stopped recording, if any.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    private synchronized int drain(long[] ts, String[] nmea, boolean wait)
+            throws InterruptedException {
+        while (wait && count == 0) {
+            wait(FLUSH_INTERVAL);
+            if (count == 0) {
+                return 0;
+            }
+        }
+        final int n = count;
+        for (int i = 0; i < n; ++i) {
+            final int j = (head + i) % sentences.length;
+            ts[i] = timestamps[j];
+            nmea[i] = sentences[j];
+            sentences[j] = null;
+        }
+        head = (head + n) % sentences.length;
+        count = 0;
+        return n;
+    }
+
+    private class Writer implements Runnable {
+        private final SimpleDateFormat segmentNameFormat = new SimpleDateFormat(
+                "yyyyMMdd-HHmmss", Locale.ENGLISH);
+        private final long[] ts = new long[sentences.length];
+        private final String[] nmea = new String[sentences.length];
+        private final byte[] line = new byte[256];
+        private OutputStream out;
+        private long segmentStart;
+        private long segmentSize;
+        private long lastFlush;
+
+        public Writer() {
+            segmentNameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean running = true;
+                while (running) {
+                    int n;
+                    try {
+                        n = drain(ts, nmea, true);
+                    } catch (InterruptedException e) {
+                        running = false;
+                        n = drain(ts, nmea, false);
+                    }
+                    for (int i = 0; i < n; ++i) {
+                        write(ts[i], nmea[i]);
+                        nmea[i] = null;
+                    }
+                    final long now = System.currentTimeMillis();
+                    if (out != null && now - lastFlush >= FLUSH_INTERVAL) {
+                        out.flush();
+                        lastFlush = now;
+                    }
+                }
+            } catch (InterruptedException ignore) {
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                closeSegment();
+            }
+        }
+
+        private void write(long timestamp, String sentence) throws IOException {
+            if (out != null
+                    && (segmentSize >= maxSegmentSize || timestamp < segmentStart
+                            || timestamp - segmentStart >= maxSegmentDuration)) {
+                closeSegment();
+            }
+            if (out == null) {
+                openSegment(timestamp);
+            }
+
+            int len = 0;
+            if (timestamp < 0) {
+                timestamp = 0;
+            }
+            // Write timestamp digits in reverse order.
+            do {
+                line[len++] = (byte) ('0' + timestamp % 10);
+                timestamp /= 10;
+            } while (timestamp != 0);
+            for (int i = 0, j = len - 1; i < j; ++i, --j) {
+                final byte b = line[i];
+                line[i] = line[j];
+                line[j] = b;
+            }
+            line[len++] = '\t';
+
+            int end = sentence.length();
+            while (end > 0
+                    && (sentence.charAt(end - 1) == '\r' || sentence.charAt(end - 1) == '\n')) {
+                end -= 1;
+            }
+            end = Math.min(end, line.length - len - 2);
+            for (int i = 0; i < end; ++i) {
+                line[len++] = (byte) sentence.charAt(i);
+            }
+            line[len++] = '\r';
+            line[len++] = '\n';
+
+            out.write(line, 0, len);
+            segmentSize += len;
+        }
+
+        private void openSegment(long timestamp) throws IOException {
+            final String baseName = "nmea-" + segmentNameFormat.format(new Date(timestamp));
+            final String ext = gzip ? ".log.gz" : ".log";
+            File segment = new File(dir, baseName + ext);
+            for (int i = 1; segment.exists(); ++i) {
+                segment = new File(dir, baseName + "-" + i + ext);
+            }
+
+            final FileOutputStream fileOut = new FileOutputStream(segment);
+            out = new BufferedOutputStream(gzip ? openGzip(fileOut) : fileOut, BUFFER_SIZE);
+            segmentStart = timestamp;
+            segmentSize = 0;
+        }
+
+        private OutputStream openGzip(OutputStream fileOut) throws IOException {
+            try {
+                // Flushing compressed data every second keeps the segment
+                // readable if the process is killed.
+                return new GZIPOutputStream(fileOut, BUFFER_SIZE, true);
+            } catch (NoSuchMethodError e) {
+                // Before Android 4.4: data is only readable once the segment
+                // is closed.
+                return new GZIPOutputStream(fileOut, BUFFER_SIZE);
+            }
+        }
+
+        private void closeSegment() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+                out = null;
+            }
+        }
+    }
+}
@@ -27,6 +27,16 @@ class NmeaRelayContext {
     public int satellitesInView;
     public int satellitesInUse;
     public State state;
+    // Location and satellites are cached from the last session, until the
+    // location provider gives fresh values.
+    public boolean cached;
+    // Time relaying was started at (elapsed realtime), and time to the first
+    // relayed sentence, in milliseconds (-1 until a sentence is relayed).
+    public long startTime;
+    public long timeToFirstSentence;
+    // Time to open a connection after the last network change, in
+    // milliseconds (-1 if the network did not change).
+    public long networkSwitchTime;
 
     public NmeaRelayContext() {
         reset();
@@ -36,5 +46,9 @@ class NmeaRelayContext {
         location = null;
         satellitesInUse = satellitesInView = 0;
         state = State.STOPPED;
+        cached = false;
+        startTime = 0;
+        timeToFirstSentence = -1;
+        networkSwitchTime = -1;
     }
 }
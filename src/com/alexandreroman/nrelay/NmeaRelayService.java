@@ -16,34 +16,76 @@
  */
 package com.alexandreroman.nrelay;
 
+import static com.alexandreroman.nrelay.Constants.ACTION_RESUME;
+import static com.alexandreroman.nrelay.Constants.NMEA_SOURCE_GPS;
+import static com.alexandreroman.nrelay.Constants.NMEA_SOURCE_LOCATION;
+import static com.alexandreroman.nrelay.Constants.NMEA_SOURCE_REPLAY;
 import static com.alexandreroman.nrelay.Constants.PREF_FILE;
+import static com.alexandreroman.nrelay.Constants.SP_AUTO_RESUME;
+import static com.alexandreroman.nrelay.Constants.SP_BACKUP_HOSTS;
+import static com.alexandreroman.nrelay.Constants.SP_HEARTBEAT_INTERVAL;
+import static com.alexandreroman.nrelay.Constants.SP_HEARTBEAT_MISSES;
 import static com.alexandreroman.nrelay.Constants.SP_HOST_ADDRESS;
+import static com.alexandreroman.nrelay.Constants.SP_INPUTS;
+import static com.alexandreroman.nrelay.Constants.SP_MQTT;
+import static com.alexandreroman.nrelay.Constants.SP_MQTT_FIX_TOPIC;
+import static com.alexandreroman.nrelay.Constants.SP_MQTT_HOST;
+import static com.alexandreroman.nrelay.Constants.SP_MQTT_PORT;
+import static com.alexandreroman.nrelay.Constants.SP_MQTT_PROFILE;
+import static com.alexandreroman.nrelay.Constants.SP_MQTT_QOS;
+import static com.alexandreroman.nrelay.Constants.SP_MQTT_TOPIC;
 import static com.alexandreroman.nrelay.Constants.SP_NETWORK_READY;
+import static com.alexandreroman.nrelay.Constants.SP_NMEA_SOURCE;
+import static com.alexandreroman.nrelay.Constants.SP_PHONE_PRIORITY;
 import static com.alexandreroman.nrelay.Constants.SP_PORT;
+import static com.alexandreroman.nrelay.Constants.SP_PROBE_INTERVAL;
+import static com.alexandreroman.nrelay.Constants.SP_RECORD;
+import static com.alexandreroman.nrelay.Constants.SP_RECORD_GZIP;
+import static com.alexandreroman.nrelay.Constants.SP_RECORD_SEGMENT_DURATION;
+import static com.alexandreroman.nrelay.Constants.SP_RECORD_SEGMENT_SIZE;
+import static com.alexandreroman.nrelay.Constants.SP_RELAY_PROFILE;
+import static com.alexandreroman.nrelay.Constants.SP_REPLAY_FILE;
+import static com.alexandreroman.nrelay.Constants.SP_REPLAY_LOOP;
+import static com.alexandreroman.nrelay.Constants.SP_REPLAY_SPEED;
+import static com.alexandreroman.nrelay.Constants.SP_SOURCE_ID;
+import static com.alexandreroman.nrelay.Constants.SP_STREAM;
+import static com.alexandreroman.nrelay.Constants.SP_STREAM_PORT;
+import static com.alexandreroman.nrelay.Constants.SP_STREAM_PROFILE;
+import static com.alexandreroman.nrelay.Constants.SP_STRIP_PROPRIETARY;
+import static com.alexandreroman.nrelay.Constants.SP_TALKER_ID;
+import static com.alexandreroman.nrelay.Constants.SP_TRACK;
+import static com.alexandreroman.nrelay.Constants.SP_TRACK_TOLERANCE;
+import static com.alexandreroman.nrelay.Constants.STATE_FILE;
+import static com.alexandreroman.nrelay.Constants.ST_LAST_ACCURACY;
+import static com.alexandreroman.nrelay.Constants.ST_LAST_LATITUDE;
+import static com.alexandreroman.nrelay.Constants.ST_LAST_LONGITUDE;
+import static com.alexandreroman.nrelay.Constants.ST_LAST_SATELLITES_IN_USE;
+import static com.alexandreroman.nrelay.Constants.ST_LAST_SATELLITES_IN_VIEW;
+import static com.alexandreroman.nrelay.Constants.ST_LAST_TIME;
+import static com.alexandreroman.nrelay.Constants.ST_RELAY_ACTIVE;
 import static com.alexandreroman.nrelay.Constants.TAG;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
-import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.location.GpsSatellite;
 import android.location.GpsStatus;
@@ -51,12 +93,15 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.util.SparseIntArray;
@@ -64,7 +109,8 @@ import android.util.SparseIntArray;
 import com.alexandreroman.nrelay.NmeaRelayContext.State;
 
 public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
-        GpsStatus.Listener, LocationListener {
+        NmeaReplay.Listener, GpsStatus.Listener, LocationListener {
+    private static final long TRACK_COMPACTION_STOP_TIMEOUT = 2000;
     private static final SparseIntArray STR_STATES = new SparseIntArray(4);
     static {
         STR_STATES.put(State.STARTING.ordinal(), R.string.notif_starting);
@@ -86,24 +132,91 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
         public NmeaRelayService getService() {
             return service;
         }
+
+        /**
+         * @see NmeaRelayService#subscribe(int)
+         */
+        public NmeaSubscription subscribe(int capacity) {
+            return service.subscribe(capacity);
+        }
+
+        /**
+         * @see NmeaRelayService#unsubscribe(NmeaSubscription)
+         */
+        public void unsubscribe(NmeaSubscription subscription) {
+            service.unsubscribe(subscription);
+        }
     }
 
     private Handler uiHandler;
     private final Binder binder = new Binder(this);
     private final NumberFormat locationFormat = NumberFormat.getInstance(Locale.ENGLISH);
     private final NmeaRelayContext context = new NmeaRelayContext();
-    private BlockingQueue<String> nmeaQueue = new ArrayBlockingQueue<String>(16);
+    private final NmeaQueue nmeaQueue = new NmeaQueue(64);
+    private final Object subscriptionLock = new Object();
+    private volatile NmeaSubscription[] subscriptions = new NmeaSubscription[0];
     private Set<WeakReference<NmeaRelayListener>> listenerRefs = new HashSet<WeakReference<NmeaRelayListener>>(
             2);
     private boolean relaying;
     private PowerManager.WakeLock pLock;
-    private SocketChannel sock;
-    private final ByteBuffer buffer = ByteBuffer.allocate(512);
-    private final CharsetEncoder encoder = Charset.forName("US-ASCII").newEncoder();
     private PendingIntent openMainActivityIntent;
-    private Thread nmeaWorker;
+    private NmeaRelayWorker nmeaWorker;
+    private Thread nmeaReplay;
+    private NmeaRecorder nmeaRecorder;
+    private NmeaStreamServer streamServer;
+    private MqttPublisher mqttPublisher;
+    private NioEventLoop ioLoop;
+    private NmeaInputs nmeaInputs;
+    private NmeaMergeStage mergeStage;
+    private TransformCache transformCache;
+    private File trackDir;
+    private TrackWriter trackWriter;
+    private volatile boolean trackEnabled;
+    private final Fix locationFix = new Fix();
+    private NmeaSynthesizer nmeaSynthesizer;
+    private final byte[] synthesizedNmea = new byte[NmeaSynthesizer.MAX_LENGTH];
+    private NmeaFixParser replayFixParser;
+    private Thread trackCompaction;
+    private int trackSegmentCount;
 
     private SharedPreferences prefs;
+    private SharedPreferences statePrefs;
+    private long lastStateSave;
+    private volatile RelayConfig relayConfig;
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (prefs == null) {
+                return;
+            }
+            trackEnabled = prefs.getBoolean(SP_TRACK, true);
+            // Publish a new snapshot: it is picked up by the worker with the
+            // next sentence.
+            final RelayConfig config = loadRelayConfig();
+            if (!config.hasSameTransport(relayConfig)) {
+                Log.i(TAG, "Relay configuration changed: " + config);
+            }
+            relayConfig = config;
+        }
+    };
+    private String networkKey;
+    private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context ctx, Intent intent) {
+            // Network changes are pushed to the worker, which opens a new
+            // connection at once instead of waiting for the old one to fail.
+            final String key = ConnectivityListener.getNetworkKey(ctx);
+            final NmeaRelayWorker worker = nmeaWorker;
+            if (key == null ? networkKey == null : key.equals(networkKey)) {
+                return;
+            }
+            Log.i(TAG, "Network changed: " + (key == null ? "not ready" : key));
+            networkKey = key;
+            if (worker != null) {
+                worker.onNetworkChanged(key != null);
+            }
+        }
+    };
     private LocationManager locationManager;
     private PowerManager powerManager;
 
@@ -136,18 +249,74 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
         locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         prefs = getSharedPreferences(PREF_FILE, MODE_PRIVATE);
+        statePrefs = getSharedPreferences(STATE_FILE, MODE_PRIVATE);
+        relayConfig = loadRelayConfig();
+        Log.i(TAG, "Relay configuration: " + relayConfig);
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener);
+
+        // The track store is opened by the track writer thread.
+        trackDir = getExternalFilesDir("track");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The intent is null when the service is restarted by the system.
+        final boolean resume = intent == null || ACTION_RESUME.equals(intent.getAction());
+        if (resume && !relaying) {
+            if (isResumable(prefs, statePrefs)) {
+                Log.i(TAG, "Resuming NMEA relay");
+                try {
+                    startNmeaRelay();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to resume NMEA relay", e);
+                }
+            }
+            if (!relaying) {
+                stopSelf(startId);
+            }
+        }
+        return START_STICKY;
+    }
+
+    /**
+     * Resume relaying if the last session was not stopped by the user, and if
+     * relaying should be resumed automatically. This method is called when
+     * the device is booted, or when the network is available.
+     */
+    public static void resume(Context context) {
+        if (isResumable(context.getSharedPreferences(PREF_FILE, MODE_PRIVATE),
+                context.getSharedPreferences(STATE_FILE, MODE_PRIVATE))) {
+            context.startService(new Intent(context, NmeaRelayService.class)
+                    .setAction(ACTION_RESUME));
+        }
+    }
+
+    private static boolean isResumable(SharedPreferences prefs, SharedPreferences statePrefs) {
+        return prefs.getBoolean(SP_AUTO_RESUME, false)
+                && statePrefs.getBoolean(ST_RELAY_ACTIVE, false);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        stopNmeaRelay();
+        // The session is resumed if the service is destroyed while relaying.
+        stopRelaying();
         uiHandler = null;
         openMainActivityIntent = null;
         locationManager = null;
         powerManager = null;
+        prefs.unregisterOnSharedPreferenceChangeListener(prefsListener);
         prefs = null;
+        statePrefs = null;
         nmeaQueue.clear();
+        synchronized (subscriptionLock) {
+            for (final NmeaSubscription s : subscriptions) {
+                s.close();
+            }
+            subscriptions = new NmeaSubscription[0];
+        }
+        // The track store was closed when relaying was stopped.
+        trackDir = null;
     }
 
     @Override
@@ -161,6 +330,12 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
         }
         if (newState != context.state) {
             Log.i(TAG, "State updated: " + newState);
+            if (newState == State.RELAYING_NMEA && context.timeToFirstSentence < 0) {
+                final long now = SystemClock.elapsedRealtime();
+                context.timeToFirstSentence = now - context.startTime;
+                Log.i(TAG, "First sentence relayed " + context.timeToFirstSentence
+                        + " ms after start (" + now / 1000 + " s after boot)");
+            }
             final int res = STR_STATES.get(newState.ordinal());
             startForeground(R.string.stat_notify_nmea_relay, createNotification(res));
             context.state = newState;
@@ -172,9 +347,29 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
         return context;
     }
 
+    /**
+     * Get the store holding position fixes, or <code>null</code> if no store
+     * is available. The store is only open while relaying, once the track
+     * writer opened it.
+     */
+    public TrackStore getTrackStore() {
+        final TrackWriter writer = trackWriter;
+        return writer == null ? null : writer.getStore();
+    }
+
     @Override
     public void onNmeaReceived(long timestamp, String nmea) {
-        nmeaQueue.offer(nmea);
+        final NmeaRecorder recorder = nmeaRecorder;
+        if (recorder != null) {
+            recorder.record(timestamp, nmea);
+        }
+        final NmeaFixParser parser = replayFixParser;
+        if (parser != null && parser.parse(nmea)) {
+            // Replayed sentences are the only source of fixes. They are not
+            // stored: the track holds fixes from this device.
+            publishFix(parser.getFix());
+        }
+        nmeaQueue.offer(timestamp, nmea);
     }
 
     @Override
@@ -212,7 +407,135 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
                         + locationFormat.format(loc.getLongitude()) + "°, "
                         + locationFormat.format(loc.getAccuracy()) + " m]");
         context.location = loc;
+        context.cached = false;
         fireNmeaRelayContextChanged();
+        if (loc.getTime() - lastStateSave >= 60000) {
+            saveLastLocation();
+        }
+
+        if (replayFixParser == null) {
+            locationFix.reset();
+            locationFix.time = loc.getTime();
+            locationFix.latitude = loc.getLatitude();
+            locationFix.longitude = loc.getLongitude();
+            if (loc.hasAltitude()) {
+                locationFix.altitude = (float) loc.getAltitude();
+            }
+            if (loc.hasSpeed()) {
+                locationFix.speed = loc.getSpeed();
+            }
+            if (loc.hasBearing()) {
+                locationFix.bearing = loc.getBearing();
+            }
+            if (loc.hasAccuracy()) {
+                locationFix.accuracy = loc.getAccuracy();
+            }
+            storeFix(locationFix);
+            publishFix(locationFix);
+
+            final NmeaSynthesizer synthesizer = nmeaSynthesizer;
+            if (synthesizer != null) {
+                final long t = locationFix.time;
+                int len = synthesizer.gga(locationFix, context.satellitesInUse, synthesizedNmea);
+                nmeaQueue.offer(t, synthesizedNmea, 0, len);
+                len = synthesizer.rmc(locationFix, synthesizedNmea);
+                nmeaQueue.offer(t, synthesizedNmea, 0, len);
+                len = synthesizer.vtg(locationFix, synthesizedNmea);
+                nmeaQueue.offer(t, synthesizedNmea, 0, len);
+            }
+        }
+    }
+
+    private void storeFix(Fix fix) {
+        final TrackWriter writer = trackWriter;
+        if (writer != null) {
+            if (trackEnabled) {
+                writer.write(fix);
+            }
+            if (writer.getSegmentCount() != trackSegmentCount) {
+                // The store was opened, or a segment was closed: compact
+                // closed segments.
+                trackSegmentCount = writer.getSegmentCount();
+                startTrackCompaction(writer.getStore());
+            }
+        }
+    }
+
+    private void stopTrackWriter() {
+        final TrackWriter writer = trackWriter;
+        if (writer != null) {
+            trackWriter = null;
+            // Compaction is stopped before the store is closed.
+            stopTrackCompaction();
+            writer.stop();
+            if (writer.getDroppedCount() != 0) {
+                Log.w(TAG, "Track writer dropped " + writer.getDroppedCount() + " fix(es)");
+            }
+            if (writer.getFailure() != null) {
+                Log.w(TAG, "Failed to store fix", writer.getFailure());
+            }
+        }
+    }
+
+    private void publishFix(Fix fix) {
+        final NmeaStreamServer server = streamServer;
+        if (server != null) {
+            server.publishFix(fix, context);
+        }
+        final MqttPublisher publisher = mqttPublisher;
+        if (publisher != null) {
+            publisher.offerFix(fix, context);
+        }
+    }
+
+    private void startTrackCompaction(TrackStore store) {
+        if (store == null || (trackCompaction != null && trackCompaction.isAlive())) {
+            return;
+        }
+        final double tolerance;
+        try {
+            tolerance = Double.parseDouble(prefs.getString(SP_TRACK_TOLERANCE, "10"));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid track compaction tolerance", e);
+            return;
+        }
+        if (tolerance <= 0) {
+            // Track compaction is disabled.
+            return;
+        }
+
+        final TrackCompactor compactor = new TrackCompactor(store, tolerance);
+        trackCompaction = new Thread("NRelay/Compaction") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                compactor.run();
+                if (compactor.getFailure() != null) {
+                    Log.w(TAG, "Failed to compact track store", compactor.getFailure());
+                } else if (compactor.getInputCount() != 0) {
+                    Log.i(TAG, "Track store compacted: " + compactor.getInputCount() + " -> "
+                            + compactor.getOutputCount() + " fix(es)");
+                }
+            }
+        };
+        trackCompaction.start();
+    }
+
+    private void stopTrackCompaction() {
+        final Thread t = trackCompaction;
+        if (t != null) {
+            trackCompaction = null;
+            // Compaction checks for interrupts between blocks of fixes.
+            t.interrupt();
+            try {
+                t.join(TRACK_COMPACTION_STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (t.isAlive()) {
+                Log.w(TAG, "Track compaction is still running");
+            }
+        }
     }
 
     @Override
@@ -262,40 +585,310 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
             return;
         }
 
+        final String source = prefs.getString(SP_NMEA_SOURCE, NMEA_SOURCE_GPS);
+        if (NMEA_SOURCE_REPLAY.equals(source)) {
+            nmeaReplay = createNmeaReplay();
+        }
+
         context.reset();
+        context.startTime = SystemClock.elapsedRealtime();
+        loadLastLocation();
+        // Network inputs and outputs share a single event loop.
+        ioLoop = new NioEventLoop("NRelay/IO");
+        nmeaInputs = createNmeaInputs();
 
         pLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
         pLock.acquire();
         updateState(State.STARTING);
 
-        nmeaWorker = new NmeaRelayWorker();
+        final RelayPipeline pipeline = createRelayPipeline();
+        nmeaWorker = new NmeaRelayWorker(nmeaQueue, pipeline, new NmeaRelayCallback(pipeline));
         nmeaWorker.start();
+        // The sticky broadcast is received at once: the current network must
+        // not be seen as a change.
+        networkKey = ConnectivityListener.getNetworkKey(this);
+        final IntentFilter networkFilter = new IntentFilter(
+                ConnectivityManager.CONNECTIVITY_ACTION);
+        networkFilter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        registerReceiver(networkReceiver, networkFilter);
+
+        final long locationUpdateInterval;
+        if (nmeaReplay != null) {
+            replayFixParser = new NmeaFixParser();
+            nmeaReplay.start();
+            locationUpdateInterval = 4000;
+        } else if (NMEA_SOURCE_LOCATION.equals(source)) {
+            // Sentences are generated at a steady rate from location updates.
+            nmeaSynthesizer = new NmeaSynthesizer();
+            locationUpdateInterval = 1000;
+        } else {
+            if (prefs.getBoolean(SP_RECORD, false)) {
+                startNmeaRecorder();
+            }
+            locationManager.addNmeaListener(this);
+            locationUpdateInterval = 4000;
+        }
 
         Log.d(TAG, "Requesting location updates through GPS");
-        locationManager.addNmeaListener(this);
         locationManager.addGpsStatusListener(this);
-        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 4000, 0, this);
+        locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER,
+                locationUpdateInterval, 0, this);
+
+        if (trackDir != null && nmeaReplay == null) {
+            // Fixes are stored from a background thread. A segment holds up
+            // to a day of fixes at 1 Hz. Closed segments are compacted once
+            // the store is open.
+            trackEnabled = prefs.getBoolean(SP_TRACK, true);
+            trackWriter = new TrackWriter(trackDir, 86400, 16);
+            trackSegmentCount = 0;
+            trackWriter.start();
+        }
+        if (prefs.getBoolean(SP_STREAM, false)) {
+            startStreamServer();
+        }
+        if (prefs.getBoolean(SP_MQTT, false)) {
+            startMqttPublisher();
+        }
+        if (nmeaInputs != null) {
+            nmeaInputs.start();
+        }
+        ioLoop.start();
 
         Log.i(TAG, "NMEA relay started");
         relaying = true;
+        statePrefs.edit().putBoolean(ST_RELAY_ACTIVE, true).apply();
         fireNmeaRelayContextChanged();
     }
 
+    private Thread createNmeaReplay() throws IOException {
+        final String replayFile = prefs.getString(SP_REPLAY_FILE, null);
+        if (replayFile == null) {
+            throw new IOException("No NMEA log file set");
+        }
+        final float speed;
+        try {
+            speed = Float.parseFloat(prefs.getString(SP_REPLAY_SPEED, "1"));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid NMEA log replay speed", e);
+        }
+        if (speed < 0) {
+            throw new IOException("Invalid NMEA log replay speed: " + speed);
+        }
+        final boolean loop = prefs.getBoolean(SP_REPLAY_LOOP, false);
+
+        Log.i(TAG, "Replaying NMEA log file: " + replayFile + " (speed: " + speed + ")");
+        final NmeaLogReader reader = new NmeaLogReader(new File(replayFile));
+        return new Thread(new NmeaReplay(reader, this, speed, loop), "NRelay/Replay");
+    }
+
+    private void startNmeaRecorder() {
+        final File dir = getExternalFilesDir("nmea");
+        if (dir == null) {
+            Log.w(TAG, "External storage is not available: cannot record NMEA");
+            return;
+        }
+        final long segmentSize;
+        final long segmentDuration;
+        try {
+            segmentSize = Long.parseLong(prefs.getString(SP_RECORD_SEGMENT_SIZE, "16")) * 1024
+                    * 1024;
+            segmentDuration = Long.parseLong(prefs.getString(SP_RECORD_SEGMENT_DURATION, "60"))
+                    * 60 * 1000;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid NMEA log segment settings: cannot record NMEA", e);
+            return;
+        }
+        if (segmentSize <= 0 || segmentDuration <= 0) {
+            Log.w(TAG, "Invalid NMEA log segment size or duration: cannot record NMEA");
+            return;
+        }
+        final boolean gzip = prefs.getBoolean(SP_RECORD_GZIP, true);
+
+        Log.i(TAG, "Recording NMEA to " + dir);
+        final NmeaRecorder recorder = new NmeaRecorder(dir, segmentSize, segmentDuration, gzip,
+                1024);
+        try {
+            recorder.start();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to start NMEA recorder", e);
+            return;
+        }
+        nmeaRecorder = recorder;
+    }
+
+    private void stopNmeaRecorder() {
+        final NmeaRecorder recorder = nmeaRecorder;
+        if (recorder != null) {
+            nmeaRecorder = null;
+            recorder.stop();
+            if (recorder.getDroppedCount() != 0) {
+                Log.w(TAG, "NMEA recorder dropped " + recorder.getDroppedCount() + " sentence(s)");
+            }
+            if (recorder.getFailure() != null) {
+                Log.w(TAG, "NMEA recorder failed", recorder.getFailure());
+            }
+        }
+    }
+
+    private void startStreamServer() {
+        final int port;
+        try {
+            port = Integer.parseInt(prefs.getString(SP_STREAM_PORT, "8080"));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid streaming port: cannot stream NMEA", e);
+            return;
+        }
+        final NmeaStreamServer server = new NmeaStreamServer(ioLoop, port, 256);
+        try {
+            server.start();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to start streaming server", e);
+            return;
+        }
+        Log.i(TAG, "Streaming NMEA on port " + port);
+        streamServer = server;
+    }
+
+    private void stopStreamServer() {
+        final NmeaStreamServer server = streamServer;
+        if (server != null) {
+            streamServer = null;
+            server.stop();
+            if (server.getSkippedCount() != 0) {
+                Log.w(TAG, "Streaming server skipped " + server.getSkippedCount()
+                        + " frame(s) for slow subscribers");
+            }
+        }
+    }
+
+    private void startMqttPublisher() {
+        final String host = prefs.getString(SP_MQTT_HOST, null);
+        if (host == null || host.length() == 0) {
+            Log.w(TAG, "No MQTT broker set: cannot publish NMEA");
+            return;
+        }
+        String clientId = prefs.getString(SP_SOURCE_ID, null);
+        if (clientId == null || clientId.length() == 0) {
+            clientId = Integer.toHexString(new Random().nextInt());
+        }
+        clientId = "nrelay-" + clientId;
+        if (clientId.length() > 23) {
+            clientId = clientId.substring(0, 23);
+        }
+
+        final MqttPublisher publisher;
+        try {
+            final int port = Integer.parseInt(prefs.getString(SP_MQTT_PORT, "1883"));
+            final int qos = Integer.parseInt(prefs.getString(SP_MQTT_QOS, "0"));
+            publisher = new MqttPublisher(ioLoop, host, port, clientId, prefs.getString(
+                    SP_MQTT_TOPIC, "nrelay/nmea"), prefs.getString(SP_MQTT_FIX_TOPIC, null), qos,
+                    30, 16);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid MQTT settings: cannot publish NMEA", e);
+            return;
+        }
+        Log.i(TAG, "Publishing NMEA to MQTT broker: " + host);
+        publisher.start();
+        mqttPublisher = publisher;
+    }
+
+    private NmeaInputs createNmeaInputs() {
+        final String inputs = prefs.getString(SP_INPUTS, "");
+        final List<NmeaInputs.Spec> specs = new ArrayList<NmeaInputs.Spec>(4);
+        for (final String input : inputs.split(",")) {
+            if (input.trim().length() == 0) {
+                continue;
+            }
+            try {
+                specs.add(NmeaInputs.parse(input));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring invalid network input: " + input);
+            }
+        }
+        if (specs.isEmpty()) {
+            return null;
+        }
+        Log.i(TAG, "Reading NMEA from network inputs: " + specs);
+        return new NmeaInputs(ioLoop, specs, nmeaQueue);
+    }
+
+    private void stopNmeaInputs() {
+        final NmeaInputs inputs = nmeaInputs;
+        if (inputs == null) {
+            return;
+        }
+        nmeaInputs = null;
+        inputs.stop();
+        for (int i = 1; i <= inputs.getInputCount(); ++i) {
+            Log.i(TAG, "Network input " + inputs.getSpec(i) + ": "
+                    + inputs.getReceivedCount(i) + " sentence(s) received, "
+                    + inputs.getDroppedCount(i) + " dropped by rate limit");
+            if (inputs.getFailure(i) != null) {
+                Log.w(TAG, "Last error for network input " + inputs.getSpec(i),
+                        inputs.getFailure(i));
+            }
+        }
+        final NmeaMergeStage merge = mergeStage;
+        if (merge != null) {
+            mergeStage = null;
+            Log.i(TAG, "Merged network inputs: " + merge.getDuplicateCount()
+                    + " duplicate(s), " + merge.getSuppressedCount()
+                    + " sentence(s) from lower priority sources");
+        }
+    }
+
+    private void stopMqttPublisher() {
+        final MqttPublisher publisher = mqttPublisher;
+        if (publisher != null) {
+            mqttPublisher = null;
+            publisher.stop();
+            Log.i(TAG, "Published " + publisher.getPublishedCount() + " MQTT message(s)");
+            if (publisher.getDroppedCount() != 0) {
+                Log.w(TAG, "MQTT publisher dropped " + publisher.getDroppedCount()
+                        + " sentence(s)");
+            }
+            if (publisher.getFailure() != null) {
+                Log.w(TAG, "Last MQTT error", publisher.getFailure());
+            }
+        }
+    }
+
     public void stopNmeaRelay() {
+        statePrefs.edit().putBoolean(ST_RELAY_ACTIVE, false).apply();
+        stopRelaying();
+    }
+
+    private void stopRelaying() {
         if (!relaying) {
             Log.d(TAG, "Relaying is not active");
+        } else if (context.location != null && !context.cached) {
+            saveLastLocation();
         }
         locationManager.removeNmeaListener(this);
         locationManager.removeGpsStatusListener(this);
         locationManager.removeUpdates(this);
-        if (sock != null) {
-            try {
-                sock.close();
-            } catch (IOException ignore) {
+        if (nmeaReplay != null) {
+            nmeaReplay.interrupt();
+            nmeaReplay = null;
+        }
+        replayFixParser = null;
+        nmeaSynthesizer = null;
+        stopNmeaRecorder();
+        stopTrackWriter();
+        stopStreamServer();
+        stopMqttPublisher();
+        stopNmeaInputs();
+        if (ioLoop != null) {
+            ioLoop.stop();
+            if (ioLoop.getFailure() != null) {
+                Log.w(TAG, "Network event loop caught " + ioLoop.getFailureCount()
+                        + " error(s), last one", ioLoop.getFailure());
             }
-            sock = null;
+            ioLoop = null;
         }
         if (nmeaWorker != null) {
+            unregisterReceiver(networkReceiver);
+            networkKey = null;
             nmeaWorker.interrupt();
             nmeaWorker = null;
         }
@@ -311,6 +904,42 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
         stopSelf();
     }
 
+    /**
+     * Show the last known location and satellites while the location
+     * provider is starting.
+     */
+    private void loadLastLocation() {
+        Location loc = null;
+        if (statePrefs.contains(ST_LAST_TIME)) {
+            loc = new Location(LocationManager.GPS_PROVIDER);
+            loc.setLatitude(Double.longBitsToDouble(statePrefs.getLong(ST_LAST_LATITUDE, 0)));
+            loc.setLongitude(Double.longBitsToDouble(statePrefs.getLong(ST_LAST_LONGITUDE, 0)));
+            loc.setAccuracy(statePrefs.getFloat(ST_LAST_ACCURACY, 0));
+            loc.setTime(statePrefs.getLong(ST_LAST_TIME, 0));
+        }
+        final Location known = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+        if (known != null && (loc == null || known.getTime() > loc.getTime())) {
+            loc = known;
+        }
+        if (loc != null) {
+            context.location = loc;
+            context.satellitesInUse = statePrefs.getInt(ST_LAST_SATELLITES_IN_USE, 0);
+            context.satellitesInView = statePrefs.getInt(ST_LAST_SATELLITES_IN_VIEW, 0);
+            context.cached = true;
+        }
+    }
+
+    private void saveLastLocation() {
+        final Location loc = context.location;
+        lastStateSave = loc.getTime();
+        statePrefs.edit()
+                .putLong(ST_LAST_LATITUDE, Double.doubleToLongBits(loc.getLatitude()))
+                .putLong(ST_LAST_LONGITUDE, Double.doubleToLongBits(loc.getLongitude()))
+                .putFloat(ST_LAST_ACCURACY, loc.getAccuracy()).putLong(ST_LAST_TIME, loc.getTime())
+                .putInt(ST_LAST_SATELLITES_IN_USE, context.satellitesInUse)
+                .putInt(ST_LAST_SATELLITES_IN_VIEW, context.satellitesInView).apply();
+    }
+
     public void addListener(NmeaRelayListener listener) {
         clearListeners();
         if (listener != null) {
@@ -318,6 +947,52 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
         }
     }
 
+    /**
+     * Subscribe to relayed sentences. Sentences are received as they were
+     * read from the phone and network inputs, before being filtered or
+     * transformed, on the thread reading the returned subscription. Unlike
+     * {@link NmeaRelayListener}, this method is meant for high-rate consumers.
+     * 
+     * @param capacity
+     *            how many sentences may be buffered before sentences are
+     *            dropped
+     */
+    public NmeaSubscription subscribe(int capacity) {
+        final NmeaSubscription subscription = new NmeaSubscription(capacity);
+        synchronized (subscriptionLock) {
+            final NmeaSubscription[] s = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            s[s.length - 1] = subscription;
+            subscriptions = s;
+        }
+        return subscription;
+    }
+
+    /**
+     * Close a subscription: no more sentences are received.
+     */
+    public void unsubscribe(NmeaSubscription subscription) {
+        if (subscription == null) {
+            return;
+        }
+        subscription.close();
+        synchronized (subscriptionLock) {
+            final NmeaSubscription[] s = subscriptions;
+            for (int i = 0; i < s.length; ++i) {
+                if (s[i] == subscription) {
+                    final NmeaSubscription[] l = new NmeaSubscription[s.length - 1];
+                    System.arraycopy(s, 0, l, 0, i);
+                    System.arraycopy(s, i + 1, l, i, l.length - i);
+                    subscriptions = l;
+                    if (subscription.getDroppedCount() != 0) {
+                        Log.i(TAG, "NMEA subscription closed: " + subscription.getDroppedCount()
+                                + " sentences dropped");
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
     public void removeListener(NmeaRelayListener listener) {
         clearListeners();
         if (listener != null) {
@@ -345,83 +1020,273 @@ public class NmeaRelayService extends Service implements GpsStatus.NmeaListener,
         uiHandler.sendEmptyMessage(0);
     }
 
-    private void sendNmeaOnLocalNetwork(String nmea) throws IOException {
-        if (!prefs.getBoolean(SP_NETWORK_READY, false)) {
-            Log.d(TAG, "Network is not ready: cannot relay NMEA");
-            updateState(State.NETWORK_UNAVAILABLE);
-            return;
+    private RelayPipeline createRelayPipeline() {
+        final RelayPipeline pipeline = new RelayPipeline();
+        final NmeaInputs inputs = nmeaInputs;
+        if (inputs != null) {
+            int phonePriority = 0;
+            try {
+                phonePriority = Integer.parseInt(prefs.getString(SP_PHONE_PRIORITY, "0"));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid phone priority: using default", e);
+            }
+            final int[] priorities = new int[inputs.getInputCount() + 1];
+            priorities[NmeaSentence.SOURCE_PHONE] = phonePriority;
+            for (int i = 1; i < priorities.length; ++i) {
+                priorities[i] = inputs.getSpec(i).priority;
+            }
+            mergeStage = new NmeaMergeStage(priorities);
+            pipeline.add("merge", mergeStage);
         }
+        pipeline.add("subscriptions", new RelayStage() {
+            @Override
+            public boolean process(NmeaSentence nmea) {
+                final NmeaSubscription[] s = subscriptions;
+                for (int i = 0; i < s.length; ++i) {
+                    s[i].offer(nmea);
+                }
+                return true;
+            }
+        });
+        // Filters and transforms follow configuration changes while relaying.
+        final RelayStage proprietaryFilter = new ProprietaryFilterStage();
+        pipeline.add("proprietary", new RelayStage() {
+            @Override
+            public boolean process(NmeaSentence nmea) throws IOException {
+                return !relayConfig.isStripProprietary() || proprietaryFilter.process(nmea);
+            }
+        });
+        pipeline.add("talker", new RelayStage() {
+            @Override
+            public boolean process(NmeaSentence nmea) throws IOException {
+                final RelayStage talkerRewrite = relayConfig.getTalkerRewrite();
+                return talkerRewrite == null || talkerRewrite.process(nmea);
+            }
+        });
+        // Destinations using the same transformation profile share the
+        // transformed sentence.
+        final TransformCache transforms = new TransformCache(3);
+        transformCache = transforms;
+        pipeline.add("profiles", new RelayStage() {
+            @Override
+            public boolean process(NmeaSentence nmea) {
+                transforms.clear();
+                return true;
+            }
+        });
+        if (prefs.getBoolean(SP_STREAM, false)) {
+            pipeline.add("stream", new RelayStage() {
+                private final NmeaProbe probe = new NmeaProbe();
+                private final NmeaSentence probeSentence = new NmeaSentence();
 
-        if (sock == null) {
-            Log.d(TAG, "Initializing client socket");
-            final String hostAddress = prefs.getString(SP_HOST_ADDRESS, "192.168.1.93");
-            if (hostAddress == null) {
-                throw new IOException("No host address set");
+                @Override
+                public boolean process(NmeaSentence nmea) {
+                    final RelayConfig config = relayConfig;
+                    final NmeaStreamServer server = streamServer;
+                    final NmeaSentence out = transforms.get(
+                            config.getProfile(RelayConfig.DESTINATION_STREAM), nmea);
+                    if (server != null && out != null) {
+                        server.publishNmea(out);
+                        if (probe.next(config.getProbeInterval(), nmea.timestamp,
+                                probeSentence)) {
+                            server.publishNmea(probeSentence);
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+        if (prefs.getBoolean(SP_MQTT, false)) {
+            pipeline.add("mqtt", new RelayStage() {
+                @Override
+                public boolean process(NmeaSentence nmea) {
+                    final MqttPublisher publisher = mqttPublisher;
+                    final NmeaSentence out = transforms.get(
+                            relayConfig.getProfile(RelayConfig.DESTINATION_MQTT), nmea);
+                    if (publisher != null && out != null) {
+                        publisher.offer(out);
+                    }
+                    return true;
+                }
+            });
+        }
+        // Relay servers are the last destination: the sentence is updated.
+        pipeline.add("relay profile", new RelayStage() {
+            @Override
+            public boolean process(NmeaSentence nmea) {
+                final NmeaSentence out = transforms.get(
+                        relayConfig.getProfile(RelayConfig.DESTINATION_RELAY), nmea);
+                if (out != null && out != nmea) {
+                    nmea.set(out);
+                }
+                return out != null;
             }
-            final int port = Integer.parseInt(prefs.getString(SP_PORT, "0"));
-            final InetSocketAddress serverAddr = new InetSocketAddress(hostAddress, port);
-            sock = SocketChannel.open();
-            sock.configureBlocking(true);
-            sock.socket().setSoTimeout(4000);
+        });
+        if (BuildConfig.DEBUG) {
+            pipeline.add("log", new RelayStage() {
+                @Override
+                public boolean process(NmeaSentence nmea) {
+                    Log.v(TAG, "Sending NMEA on local network: " + nmea + " (" + nmea.length
+                            + " bytes)");
+                    return true;
+                }
+            });
+        }
+        return pipeline;
+    }
 
-            Log.d(TAG, "Connecting to server: " + hostAddress + ":" + port);
+    private RelayConfig loadRelayConfig() {
+        final List<InetSocketAddress> destinations = new ArrayList<InetSocketAddress>(2);
+        final String hostAddress = prefs.getString(SP_HOST_ADDRESS, "192.168.1.93");
+        int port = 0;
+        try {
+            port = Integer.parseInt(prefs.getString(SP_PORT, "0"));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid server port", e);
+        }
+        if (hostAddress != null && hostAddress.length() != 0) {
             try {
-                sock.connect(serverAddr);
-            } catch (ConnectException e) {
-                Log.w(TAG, "Failed to connect to server");
-                updateState(State.SERVER_UNREACHABLE);
-                sock = null;
-                return;
+                destinations.add(InetSocketAddress.createUnresolved(hostAddress, port));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Invalid server address: " + hostAddress + ":" + port);
             }
         }
 
-        buffer.clear();
-        encoder.encode(CharBuffer.wrap(nmea), buffer, true);
-        buffer.flip();
+        // Backup servers: "host[:port]", separated with commas.
+        final String backups = prefs.getString(SP_BACKUP_HOSTS, "");
+        for (final String backup : backups.split(",")) {
+            final String b = backup.trim();
+            if (b.length() == 0) {
+                continue;
+            }
+            final int colon = b.lastIndexOf(':');
+            try {
+                destinations.add(colon == -1 ? InetSocketAddress.createUnresolved(b, port)
+                        : InetSocketAddress.createUnresolved(b.substring(0, colon),
+                                Integer.parseInt(b.substring(colon + 1))));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring invalid backup server: " + b);
+            }
+        }
 
-        if (BuildConfig.DEBUG) {
-            Log.v(TAG, "Sending NMEA on local network: " + nmea + " (" + buffer.remaining()
-                    + " bytes)");
+        long heartbeatInterval;
+        int heartbeatMisses;
+        try {
+            heartbeatInterval = Long.parseLong(prefs.getString(SP_HEARTBEAT_INTERVAL, "0"));
+            heartbeatMisses = Integer.parseInt(prefs.getString(SP_HEARTBEAT_MISSES, "2"));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid heartbeat settings: using defaults", e);
+            heartbeatInterval = 0;
+            heartbeatMisses = 2;
         }
-        while (buffer.hasRemaining()) {
-            try {
-                sock.write(buffer);
-            } catch (IOException e) {
-                try {
-                    sock.close();
-                } catch (IOException ignore) {
-                }
-                updateState(State.SERVER_UNREACHABLE);
-                sock = null;
-                throw e;
+        if (heartbeatInterval < 0 || heartbeatMisses < 1) {
+            Log.w(TAG, "Invalid heartbeat settings: using defaults");
+            heartbeatInterval = 0;
+            heartbeatMisses = 2;
+        }
+
+        String talker = prefs.getString(SP_TALKER_ID, null);
+        if (talker != null) {
+            talker = talker.trim().toUpperCase(Locale.ENGLISH);
+            if (talker.length() == 0) {
+                talker = null;
+            } else if (talker.length() != 2) {
+                Log.w(TAG, "Ignoring invalid talker identifier: " + talker);
+                talker = null;
             }
         }
-        updateState(State.RELAYING_NMEA);
+
+        long probeInterval = 0;
+        try {
+            probeInterval = Long.parseLong(prefs.getString(SP_PROBE_INTERVAL, "0")) * 1000;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid probe interval: probes are disabled", e);
+        }
+
+        final TransformProfile[] profiles = new TransformProfile[3];
+        profiles[RelayConfig.DESTINATION_RELAY] = loadProfile(SP_RELAY_PROFILE);
+        profiles[RelayConfig.DESTINATION_STREAM] = loadProfile(SP_STREAM_PROFILE);
+        profiles[RelayConfig.DESTINATION_MQTT] = loadProfile(SP_MQTT_PROFILE);
+
+        return new RelayConfig(prefs.getBoolean(SP_NETWORK_READY, false), destinations,
+                heartbeatInterval, heartbeatMisses, prefs.getString(SP_SOURCE_ID, null), talker,
+                prefs.getBoolean(SP_STRIP_PROPRIETARY, false), profiles, probeInterval);
     }
 
-    private class NmeaRelayWorker extends Thread {
-        public NmeaRelayWorker() {
-            super("NRelay/Worker");
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    private TransformProfile loadProfile(String key) {
+        final String spec = prefs.getString(key, "");
+        if (spec == null || spec.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return TransformProfile.parse(spec);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring invalid transformation profile: " + spec, e);
+            return null;
+        }
+    }
+
+    private class NmeaRelayCallback implements NmeaRelayWorker.Callback {
+        private final RelayPipeline pipeline;
+
+        public NmeaRelayCallback(RelayPipeline pipeline) {
+            this.pipeline = pipeline;
         }
 
         @Override
-        public void run() {
-            boolean running = true;
+        public void onStarted() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
             Log.d(TAG, "NMEA worker is started");
-            while (running) {
-                try {
-                    final String nmea = nmeaQueue.take();
-                    sendNmeaOnLocalNetwork(nmea);
-                } catch (InterruptedException e) {
-                    running = false;
-                } catch (InterruptedIOException e) {
-                    running = false;
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to send NMEA on local network", e);
-                }
-            }
+        }
+
+        @Override
+        public void onStopped() {
             Log.d(TAG, "NMEA worker is stopped");
+            Log.i(TAG, "NMEA pipeline statistics: " + pipeline);
+            final TransformCache transforms = transformCache;
+            if (transforms != null) {
+                Log.i(TAG, "Transformed sentences: " + transforms.getTransformCount() + ", "
+                        + transforms.getSharedCount() + " shared between destinations");
+            }
+        }
+
+        @Override
+        public RelayConfig getConfig() {
+            return relayConfig;
+        }
+
+        @Override
+        public void onStateChanged(State state) {
+            updateState(state);
+        }
+
+        @Override
+        public void onDestinationChanged(int destination, IOException cause) {
+            if (destination == 0) {
+                Log.i(TAG, "Relaying NMEA to primary server");
+            } else if (destination > 0) {
+                Log.w(TAG, "Relaying NMEA to backup server #" + destination, cause);
+            } else {
+                Log.w(TAG, "Failed to connect to server", cause);
+            }
+        }
+
+        @Override
+        public void onNetworkSwitched(long delay, int sentCount, int droppedCount) {
+            if (delay < 0) {
+                Log.w(TAG, "Failed to connect after network change: " + droppedCount
+                        + " sentence(s) dropped");
+                return;
+            }
+            Log.i(TAG, "Connection switched to new network in " + delay + " ms: " + sentCount
+                    + " buffered sentence(s) sent, " + droppedCount + " dropped");
+            context.networkSwitchTime = delay;
+            fireNmeaRelayContextChanged();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            Log.w(TAG, "Failed to send NMEA on local network", e);
         }
     }
 }
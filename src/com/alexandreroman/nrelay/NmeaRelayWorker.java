@@ -0,0 +1,320 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Thread relaying sentences from a queue to a server, through a
+ * {@link RelayPipeline}.
+ * <p>
+ * When the network changes (see {@link #onNetworkChanged(boolean)}), the
+ * connection is closed right away, as it may be bound to a lost network, and
+ * opened again on the new network (servers are tried every 250 ms until
+ * connected). Sentences relayed meanwhile are kept in a bounded buffer
+ * (oldest sentences are dropped first), and sent once connected.
+ * <p>
+ * This class does not depend on Android: the environment is provided through
+ * a {@link Callback}, so that the relay can be run on a plain JVM.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaRelayWorker extends Thread {
+    /**
+     * Interface between the worker and its environment. Methods are called
+     * from the worker thread.
+     */
+    public interface Callback {
+        /**
+         * This method is called when the worker thread is started.
+         */
+        void onStarted();
+
+        /**
+         * This method is called when the worker thread is about to stop.
+         */
+        void onStopped();
+
+        /**
+         * Get the current configuration. This method is called for each
+         * sentence: it should only read a field.
+         */
+        RelayConfig getConfig();
+
+        /**
+         * This method is called each time a sentence is handled: the state
+         * may not have changed since last call.
+         */
+        void onStateChanged(NmeaRelayContext.State state);
+
+        /**
+         * This method is called when the client switched to another server.
+         * 
+         * @param destination
+         *            index of the server in use, or <code>-1</code> if no
+         *            server is reachable
+         * @param cause
+         *            last connection error, if any
+         */
+        void onDestinationChanged(int destination, IOException cause);
+
+        /**
+         * This method is called when relaying is resumed after a network
+         * change.
+         * 
+         * @param delay
+         *            time from the network change to the connection on the
+         *            new network, in milliseconds, or <code>-1</code> if no
+         *            connection could be opened in time
+         * @param sentCount
+         *            how many buffered sentences were sent
+         * @param droppedCount
+         *            how many sentences were dropped because the buffer was
+         *            full
+         */
+        void onNetworkSwitched(long delay, int sentCount, int droppedCount);
+
+        /**
+         * This method is called when an error occurred while relaying a
+         * sentence.
+         */
+        void onFailure(IOException e);
+    }
+
+    private static final int SWITCH_BUFFER_CAPACITY = 128;
+    private static final long SWITCH_RETRY_DELAY = 250;
+    private static final long SWITCH_TIMEOUT = 30000;
+    private final NmeaQueue queue;
+    private final RelayPipeline pipeline;
+    private final Callback callback;
+    private final NmeaProbe probe = new NmeaProbe();
+    private final NmeaSentence probeSentence = new NmeaSentence();
+    private RelayClient client;
+    private RelayConfig clientConfig;
+    private int destination = -1;
+    private final AtomicBoolean networkChanged = new AtomicBoolean();
+    private volatile long networkChangeTime;
+    private volatile boolean networkReady;
+    private final NmeaQueue switchBuffer = new NmeaQueue(SWITCH_BUFFER_CAPACITY);
+    private final NmeaSentence switchSentence = new NmeaSentence();
+    private boolean switching;
+    private long switchStart;
+    private int switchDroppedCount;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param pipeline
+     *            stages run for each sentence: a stage sending sentences to
+     *            the server is added at the end
+     */
+    public NmeaRelayWorker(NmeaQueue queue, RelayPipeline pipeline, Callback callback) {
+        super("NRelay/Worker");
+        this.queue = queue;
+        this.pipeline = pipeline;
+        this.callback = callback;
+        pipeline.add("relay", new RelayStage() {
+            @Override
+            public boolean process(NmeaSentence nmea) throws IOException {
+                send(nmea);
+                return true;
+            }
+        });
+    }
+
+    public RelayPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Tell this worker that the network changed (network lost, or another
+     * network or address used). This method may be called from any thread:
+     * the connection is switched by the worker thread, within a tick.
+     * 
+     * @param ready
+     *            <code>true</code> if the new network is connected
+     */
+    public void onNetworkChanged(boolean ready) {
+        networkReady = ready;
+        networkChangeTime = System.currentTimeMillis();
+        networkChanged.set(true);
+    }
+
+    @Override
+    public void run() {
+        callback.onStarted();
+        boolean running = true;
+        boolean connecting = true;
+        final NmeaSentence nmea = new NmeaSentence();
+        while (running) {
+            try {
+                if (connecting) {
+                    // Connect while the location provider is starting.
+                    connecting = false;
+                    connect();
+                }
+                if (networkChanged.getAndSet(false)) {
+                    startSwitch();
+                }
+                if (switching) {
+                    finishSwitch();
+                }
+                final long timeout = switching ? SWITCH_RETRY_DELAY : client == null ? 0
+                        : client.getTickDelay();
+                if (queue.take(nmea, timeout)) {
+                    pipeline.process(nmea);
+                }
+                if (client != null) {
+                    // Send heartbeats, even when no sentence is received.
+                    client.tick();
+                    checkDestination();
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (InterruptedIOException e) {
+                running = false;
+            } catch (ClosedByInterruptException e) {
+                running = false;
+            } catch (IOException e) {
+                callback.onFailure(e);
+            }
+        }
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+        callback.onStopped();
+    }
+
+    private void connect() throws IOException {
+        final RelayConfig config = callback.getConfig();
+        if (!config.isNetworkReady() || config.getDestinations().isEmpty()) {
+            return;
+        }
+        updateClient(config);
+        client.open();
+        checkDestination();
+    }
+
+    private void startSwitch() {
+        if (!switching) {
+            switching = true;
+            switchStart = networkChangeTime;
+            switchDroppedCount = 0;
+        }
+        if (client != null) {
+            // Writes to a socket bound to a lost network are silently lost.
+            client.close();
+            client = null;
+            clientConfig = null;
+            destination = -1;
+        }
+    }
+
+    private void finishSwitch() throws IOException {
+        final long now = System.currentTimeMillis();
+        final RelayConfig config = callback.getConfig();
+        // Network readiness comes with the change: the configuration may not
+        // be updated yet.
+        if (networkReady && !config.getDestinations().isEmpty()) {
+            updateClient(config);
+            // Servers are tried at each retry, not after the client delay.
+            client.resetRetryDelay();
+            if (client.open()) {
+                switching = false;
+                checkDestination();
+                int sentCount = 0;
+                while (switchBuffer.poll(switchSentence)) {
+                    if (client.send(switchSentence.data, 0, switchSentence.length)) {
+                        sentCount += 1;
+                    }
+                }
+                callback.onNetworkSwitched(now - switchStart, sentCount, switchDroppedCount);
+                return;
+            }
+        }
+        if (now - switchStart > SWITCH_TIMEOUT) {
+            // Give up: sentences are relayed (or dropped) as usual.
+            switching = false;
+            while (switchBuffer.poll(switchSentence)) {
+                switchDroppedCount += 1;
+            }
+            callback.onNetworkSwitched(-1, 0, switchDroppedCount);
+        }
+    }
+
+    private void send(NmeaSentence nmea) throws IOException {
+        if (networkChanged.getAndSet(false)) {
+            // The network changed while waiting for this sentence.
+            startSwitch();
+        }
+        if (switching) {
+            // Keep the latest sentences until connected on the new network.
+            if (!switchBuffer.offer(nmea)) {
+                switchBuffer.poll(switchSentence);
+                switchBuffer.offer(nmea);
+                switchDroppedCount += 1;
+            }
+            return;
+        }
+        final RelayConfig config = callback.getConfig();
+        if (!config.isNetworkReady()) {
+            callback.onStateChanged(NmeaRelayContext.State.NETWORK_UNAVAILABLE);
+            return;
+        }
+        updateClient(config);
+        boolean sent = client.send(nmea.data, 0, nmea.length);
+        if (sent && probe.next(config.getProbeInterval(), nmea.timestamp, probeSentence)) {
+            sent = client.send(probeSentence.data, 0, probeSentence.length);
+        }
+        if (sent) {
+            callback.onStateChanged(NmeaRelayContext.State.RELAYING_NMEA);
+        } else {
+            callback.onStateChanged(NmeaRelayContext.State.SERVER_UNREACHABLE);
+        }
+        checkDestination();
+    }
+
+    private void updateClient(RelayConfig config) throws IOException {
+        if (config != clientConfig && client != null) {
+            if (config.hasSameTransport(clientConfig)) {
+                clientConfig = config;
+            } else {
+                // Sentences already sent are flushed by the old connection,
+                // while this sentence goes to the new one.
+                client.close();
+                client = null;
+                destination = -1;
+            }
+        }
+        if (client == null) {
+            client = config.createClient();
+            clientConfig = config;
+        }
+    }
+
+    private void checkDestination() {
+        final int d = client.getCurrentDestination();
+        if (d != destination) {
+            destination = d;
+            callback.onDestinationChanged(d, client.getLastFailure());
+        }
+    }
+}
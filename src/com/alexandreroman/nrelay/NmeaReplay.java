@@ -0,0 +1,124 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+
+/**
+ * Replay NMEA sentences from a log file.
+ * <p>
+ * Sentences are sent to a listener at their original timing, at a faster
+ * pace, or as fast as possible. Original timestamps are kept.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaReplay implements Runnable {
+    /**
+     * Interface for replayed sentences. The signature matches
+     * {@link android.location.GpsStatus.NmeaListener}, so that replayed
+     * sentences follow the same path as sentences received from the GPS.
+     */
+    public interface Listener {
+        void onNmeaReceived(long timestamp, String nmea);
+    }
+
+    private final NmeaLogReader reader;
+    private final Listener listener;
+    private final float speed;
+    private final boolean loop;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param reader
+     *            log file to replay, closed when the replay is over
+     * @param listener
+     *            where to send sentences
+     * @param speed
+     *            replay speed: <code>1</code> for original timing,
+     *            <code>N</code> for N times faster, <code>0</code> for as fast
+     *            as possible
+     * @param loop
+     *            restart from the beginning when the end of file is reached
+     */
+    public NmeaReplay(NmeaLogReader reader, Listener listener, float speed, boolean loop) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Invalid replay speed: " + speed);
+        }
+        this.reader = reader;
+        this.listener = listener;
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    @Override
+    public void run() {
+        try {
+            replay();
+        } catch (InterruptedException ignore) {
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void replay() throws InterruptedException {
+        boolean started = false;
+        long firstTimestamp = 0;
+        long lastTimestamp = 0;
+        long startTime = 0;
+
+        for (;;) {
+            if (!reader.next()) {
+                if (!loop) {
+                    return;
+                }
+                reader.rewind();
+                if (!reader.next()) {
+                    // Empty log file.
+                    return;
+                }
+                started = false;
+            }
+
+            final long timestamp = reader.getTimestamp();
+            if (!started || timestamp < lastTimestamp) {
+                // Timing is reset when the log file is replayed again, or
+                // when timestamps go backwards.
+                firstTimestamp = timestamp;
+                startTime = System.nanoTime();
+                started = true;
+            }
+            lastTimestamp = timestamp;
+
+            if (speed > 0) {
+                final long due = startTime
+                        + (long) ((timestamp - firstTimestamp) * 1000000d / speed);
+                final long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                }
+            } else if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            listener.onNmeaReceived(timestamp, reader.getSentence());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * NMEA sentence, stored as ASCII bytes.
+ * <p>
+ * Instances are mutable, so that they can be reused without allocating
+ * memory.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaSentence {
+    /**
+     * Maximum sentence length, including line terminator. Standard sentences
+     * are not longer than 82 characters, but some devices send longer
+     * proprietary sentences.
+     */
+    public static final int MAX_LENGTH = 256;
+    /**
+     * Source of sentences read from the phone.
+     */
+    public static final int SOURCE_PHONE = 0;
+    /**
+     * Sentence bytes.
+     */
+    public final byte[] data = new byte[MAX_LENGTH];
+    /**
+     * Sentence length.
+     */
+    public int length;
+    /**
+     * Time this sentence was received at, in milliseconds.
+     */
+    public long timestamp;
+    /**
+     * Input this sentence was received from: {@link #SOURCE_PHONE}, or a
+     * network input number.
+     */
+    public int source;
+
+    /**
+     * Set sentence content from a string. Sentences longer than
+     * {@link #MAX_LENGTH} are truncated.
+     */
+    public void set(long timestamp, CharSequence nmea) {
+        final int n = Math.min(nmea.length(), MAX_LENGTH);
+        for (int i = 0; i < n; ++i) {
+            data[i] = (byte) nmea.charAt(i);
+        }
+        this.length = n;
+        this.timestamp = timestamp;
+        this.source = SOURCE_PHONE;
+    }
+
+    /**
+     * Set sentence content from bytes. Sentences longer than
+     * {@link #MAX_LENGTH} are truncated.
+     */
+    public void set(long timestamp, byte[] nmea, int offset, int length) {
+        final int n = Math.min(length, MAX_LENGTH);
+        System.arraycopy(nmea, offset, data, 0, n);
+        this.length = n;
+        this.timestamp = timestamp;
+        this.source = SOURCE_PHONE;
+    }
+
+    public void set(NmeaSentence s) {
+        set(s.timestamp, s.data, 0, s.length);
+        source = s.source;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            buf.append((char) data[i]);
+        }
+        return buf.toString();
+    }
+}
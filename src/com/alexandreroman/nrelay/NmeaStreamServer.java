@@ -0,0 +1,516 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stream NMEA sentences and fixes to browsers, using Server-Sent Events.
+ * <p>
+ * Clients subscribe with an HTTP request: <code>GET /nmea</code> for raw
+ * sentences, <code>GET /fix</code> for decoded fixes, or <code>GET /all</code>
+ * for both. Each event is encoded once into a shared ring of frames, which
+ * are copied as is to every subscriber.
+ * <p>
+ * Subscribers never hold more than a small output buffer: a subscriber which
+ * cannot keep up skips frames overwritten in the ring, and only receives the
+ * latest fix when several fixes are pending. Frame identifiers are sequence
+ * numbers, so that skipped frames can be detected by clients.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaStreamServer {
+    private static final int STREAM_NMEA = 1;
+    private static final int STREAM_FIX = 2;
+    private static final int STREAM_ALL = STREAM_NMEA | STREAM_FIX;
+    private static final int FRAME_SIZE = 384;
+    private static final int REQUEST_SIZE = 1024;
+    private static final int OUTPUT_SIZE = 8 * 1024;
+    private static final int MAX_SUBSCRIBERS = 16;
+    private static final long KEEP_ALIVE_INTERVAL = 15000;
+    private static final byte[] KEEP_ALIVE = ascii(":\n\n");
+    private static final byte[] EVENT_NMEA = ascii("\nevent: nmea\ndata: ");
+    private static final byte[] EVENT_FIX = ascii("\nevent: fix\ndata: ");
+    private static final byte[] RESPONSE_OK = ascii("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/event-stream\r\n" + "Cache-Control: no-cache\r\n"
+            + "Access-Control-Allow-Origin: *\r\n" + "Connection: keep-alive\r\n\r\n"
+            + "retry: 2000\n\n");
+    private static final byte[] RESPONSE_NOT_FOUND = ascii("HTTP/1.1 404 Not Found\r\n"
+            + "Content-Length: 0\r\n" + "Connection: close\r\n\r\n");
+    private static final byte[] RESPONSE_BAD_REQUEST = ascii("HTTP/1.1 400 Bad Request\r\n"
+            + "Content-Length: 0\r\n" + "Connection: close\r\n\r\n");
+    private static final byte[] RESPONSE_UNAVAILABLE = ascii(
+            "HTTP/1.1 503 Service Unavailable\r\n" + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n");
+    private final int port;
+    private final byte[][] frames;
+    private final int[] frameLengths;
+    private final int[] frameStreams;
+    private long published;
+    private final StringBuilder fixJson = new StringBuilder(FRAME_SIZE);
+    private final List<Subscriber> subscribers = new ArrayList<Subscriber>(MAX_SUBSCRIBERS);
+    private final List<Subscriber> connections = new ArrayList<Subscriber>(MAX_SUBSCRIBERS);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            // Subscribers may be removed while iterating.
+            for (int i = subscribers.size() - 1; i >= 0; --i) {
+                subscribers.get(i).flush();
+            }
+        }
+    };
+    private final Runnable keepAliveTask = new Runnable() {
+        @Override
+        public void run() {
+            final long now = System.currentTimeMillis();
+            for (int i = subscribers.size() - 1; i >= 0; --i) {
+                subscribers.get(i).keepAlive(now);
+            }
+        }
+    };
+    private final Runnable closeTask = new Runnable() {
+        @Override
+        public void run() {
+            loop.removeTick(keepAliveTask);
+            if (serverKey != null) {
+                NioEventLoop.close(serverKey);
+                serverKey = null;
+            }
+            for (int i = connections.size() - 1; i >= 0; --i) {
+                NioEventLoop.close(connections.get(i).key);
+            }
+        }
+    };
+    private final NioEventLoop loop;
+    private SelectionKey serverKey;
+    private volatile boolean running;
+    private long skippedCount;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param loop
+     *            event loop running network operations, shared with other
+     *            components
+     * @param port
+     *            TCP port to listen to
+     * @param capacity
+     *            how many frames are kept for slow subscribers
+     */
+    public NmeaStreamServer(NioEventLoop loop, int port, int capacity) {
+        this.loop = loop;
+        this.port = port;
+        frames = new byte[capacity][FRAME_SIZE];
+        frameLengths = new int[capacity];
+        frameStreams = new int[capacity];
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    /**
+     * Start listening. This method must be called before the event loop is
+     * started, or from the event loop thread.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            serverKey = loop.register(server, SelectionKey.OP_ACCEPT, new Acceptor());
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        loop.addTick(KEEP_ALIVE_INTERVAL, keepAliveTask);
+        running = true;
+    }
+
+    /**
+     * Stop the server: all subscribers are disconnected. The event loop is
+     * not stopped.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        loop.execute(closeTask);
+    }
+
+    /**
+     * Get how many frames were skipped by slow subscribers.
+     */
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Publish a sentence to subscribers. This method never blocks on
+     * subscribers.
+     */
+    public void publishNmea(NmeaSentence nmea) {
+        int end = nmea.length;
+        while (end > 0 && (nmea.data[end - 1] == '\r' || nmea.data[end - 1] == '\n')) {
+            end -= 1;
+        }
+        synchronized (this) {
+            final int slot = (int) (published % frames.length);
+            final byte[] frame = frames[slot];
+            int len = putHeader(frame, published, EVENT_NMEA);
+            end = Math.min(end, FRAME_SIZE - len - 2);
+            System.arraycopy(nmea.data, 0, frame, len, end);
+            len += end;
+            frame[len++] = '\n';
+            frame[len++] = '\n';
+            frameLengths[slot] = len;
+            frameStreams[slot] = STREAM_NMEA;
+            published += 1;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Publish a fix to subscribers, as a JSON object. This method never
+     * blocks on subscribers.
+     */
+    public void publishFix(Fix fix, NmeaRelayContext context) {
+        synchronized (this) {
+            final StringBuilder json = fixJson;
+            json.setLength(0);
+            appendFixJson(json, fix, context);
+
+            final int slot = (int) (published % frames.length);
+            final byte[] frame = frames[slot];
+            int len = putHeader(frame, published, EVENT_FIX);
+            final int n = Math.min(json.length(), FRAME_SIZE - len - 2);
+            for (int i = 0; i < n; ++i) {
+                frame[len++] = (byte) json.charAt(i);
+            }
+            frame[len++] = '\n';
+            frame[len++] = '\n';
+            frameLengths[slot] = len;
+            frameStreams[slot] = STREAM_FIX;
+            published += 1;
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Encode a fix as a JSON object, with satellite counts and relay state.
+     */
+    static void appendFixJson(StringBuilder json, Fix fix, NmeaRelayContext context) {
+        json.append("{\"time\":").append(fix.time);
+        json.append(",\"latitude\":").append(fix.latitude);
+        json.append(",\"longitude\":").append(fix.longitude);
+        appendFloat(json, "altitude", fix.altitude);
+        appendFloat(json, "speed", fix.speed);
+        appendFloat(json, "bearing", fix.bearing);
+        appendFloat(json, "accuracy", fix.accuracy);
+        json.append(",\"satellitesInUse\":").append(context.satellitesInUse);
+        json.append(",\"satellitesInView\":").append(context.satellitesInView);
+        final NmeaRelayContext.State state = context.state;
+        if (state != null) {
+            json.append(",\"state\":\"").append(state.name()).append('"');
+        }
+        json.append('}');
+    }
+
+    private static void appendFloat(StringBuilder json, String name, float value) {
+        json.append(",\"").append(name).append("\":");
+        if (Float.isNaN(value)) {
+            json.append("null");
+        } else {
+            json.append(value);
+        }
+    }
+
+    private static int putHeader(byte[] frame, long id, byte[] event) {
+        int len = 0;
+        frame[len++] = 'i';
+        frame[len++] = 'd';
+        frame[len++] = ':';
+        frame[len++] = ' ';
+        // Write identifier digits in reverse order.
+        final int start = len;
+        do {
+            frame[len++] = (byte) ('0' + id % 10);
+            id /= 10;
+        } while (id != 0);
+        for (int i = start, j = len - 1; i < j; ++i, --j) {
+            final byte b = frame[i];
+            frame[i] = frame[j];
+            frame[j] = b;
+        }
+        System.arraycopy(event, 0, frame, len, event.length);
+        return len + event.length;
+    }
+
+    private void scheduleFlush() {
+        if (running && flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Copy pending frames to a subscriber output buffer.
+     */
+    private synchronized void fill(Subscriber sub) {
+        if (sub.next < published - frames.length) {
+            // Frames were overwritten before they could be sent.
+            skippedCount += published - frames.length - sub.next;
+            sub.next = published - frames.length;
+        }
+        final ByteBuffer out = sub.out;
+        if ((sub.streams & STREAM_NMEA) == 0) {
+            // Only send the latest fix.
+            for (long seq = published - 1; seq >= sub.next; --seq) {
+                final int slot = (int) (seq % frames.length);
+                if (frameStreams[slot] == STREAM_FIX) {
+                    if (frameLengths[slot] > out.remaining()) {
+                        return;
+                    }
+                    out.put(frames[slot], 0, frameLengths[slot]);
+                    break;
+                }
+            }
+            sub.next = published;
+            return;
+        }
+        while (sub.next < published) {
+            final int slot = (int) (sub.next % frames.length);
+            if ((frameStreams[slot] & sub.streams) != 0) {
+                if (frameLengths[slot] > out.remaining()) {
+                    return;
+                }
+                out.put(frames[slot], 0, frameLengths[slot]);
+            }
+            sub.next += 1;
+        }
+    }
+
+    private synchronized long getPublishedCount() {
+        return published;
+    }
+
+    private class Acceptor implements NioEventLoop.Handler {
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            final SocketChannel ch;
+            try {
+                ch = ((ServerSocketChannel) key.channel()).accept();
+            } catch (IOException e) {
+                return;
+            }
+            if (ch == null) {
+                return;
+            }
+            try {
+                ch.socket().setTcpNoDelay(true);
+                final Subscriber sub = new Subscriber();
+                sub.key = loop.register(ch, SelectionKey.OP_READ, sub);
+                connections.add(sub);
+            } catch (IOException e) {
+                ch.close();
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+        }
+    }
+
+    private class Subscriber implements NioEventLoop.Handler {
+        private final ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+        // Length of the request line, or -1 if not read yet.
+        private int requestLineLength = -1;
+        // Last bytes read, used to find the end of the request.
+        private int tail;
+        public final ByteBuffer out = ByteBuffer.allocate(OUTPUT_SIZE);
+        public int streams;
+        public long next;
+        public SelectionKey key;
+        private boolean closing;
+        private long lastWrite;
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                if (streams == 0 && !closing) {
+                    readRequest();
+                } else {
+                    // Nothing is expected from subscribers: discard input.
+                    request.clear();
+                    if (((SocketChannel) key.channel()).read(request) < 0) {
+                        NioEventLoop.close(key);
+                        return;
+                    }
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        }
+
+        @Override
+        public void onClose(SelectionKey key) {
+            subscribers.remove(this);
+            connections.remove(this);
+        }
+
+        private void readRequest() throws IOException {
+            final int start = request.position();
+            if (((SocketChannel) key.channel()).read(request) < 0) {
+                NioEventLoop.close(key);
+                return;
+            }
+            final byte[] buf = request.array();
+            final int len = request.position();
+            for (int i = start; i < len; ++i) {
+                tail = tail << 8 | buf[i] & 0xff;
+                if (requestLineLength == -1 && (tail & 0xffff) == 0x0d0a) {
+                    requestLineLength = i - 1;
+                } else if (tail == 0x0d0a0d0a) {
+                    // An empty line ends the request.
+                    onRequest(new String(buf, 0, requestLineLength, "US-ASCII"));
+                    return;
+                }
+            }
+            if (requestLineLength != -1) {
+                // Header lines are not used: they are discarded, whatever
+                // their size.
+                request.position(requestLineLength);
+            } else if (!request.hasRemaining()) {
+                respond(RESPONSE_BAD_REQUEST);
+            }
+        }
+
+        private void onRequest(String line) throws IOException {
+            final String[] parts = line.split(" ");
+            if (parts.length != 3 || !"GET".equals(parts[0])) {
+                respond(RESPONSE_BAD_REQUEST);
+                return;
+            }
+            String path = parts[1];
+            final int query = path.indexOf('?');
+            if (query != -1) {
+                path = path.substring(0, query);
+            }
+            final int s;
+            if ("/nmea".equals(path)) {
+                s = STREAM_NMEA;
+            } else if ("/fix".equals(path)) {
+                s = STREAM_FIX;
+            } else if ("/all".equals(path)) {
+                s = STREAM_ALL;
+            } else {
+                respond(RESPONSE_NOT_FOUND);
+                return;
+            }
+            if (subscribers.size() >= MAX_SUBSCRIBERS) {
+                respond(RESPONSE_UNAVAILABLE);
+                return;
+            }
+
+            streams = s;
+            // Start with the next published frame.
+            next = getPublishedCount();
+            subscribers.add(this);
+            out.put(RESPONSE_OK);
+            write();
+        }
+
+        private void respond(byte[] response) throws IOException {
+            closing = true;
+            out.clear();
+            out.put(response);
+            write();
+        }
+
+        /**
+         * Write pending bytes, then pending frames until the socket would
+         * block.
+         */
+        private void write() throws IOException {
+            final SocketChannel ch = (SocketChannel) key.channel();
+            while (true) {
+                if (out.position() == 0 && !closing && streams != 0) {
+                    fill(this);
+                }
+                if (out.position() == 0) {
+                    break;
+                }
+                out.flip();
+                ch.write(out);
+                final boolean blocked = out.hasRemaining();
+                out.compact();
+                lastWrite = System.currentTimeMillis();
+                if (blocked) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (closing) {
+                NioEventLoop.close(key);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        public void flush() {
+            if (key == null || !key.isValid()
+                    || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                // Frames are sent when the socket is writable again.
+                return;
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                NioEventLoop.close(key);
+            }
+        }
+
+        public void keepAlive(long now) {
+            if (key == null || !key.isValid() || now - lastWrite < KEEP_ALIVE_INTERVAL
+                    || out.remaining() < KEEP_ALIVE.length) {
+                return;
+            }
+            out.put(KEEP_ALIVE);
+            flush();
+        }
+    }
+}
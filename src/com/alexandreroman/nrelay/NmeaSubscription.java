@@ -0,0 +1,179 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Subscription to relayed sentences, created by
+ * {@link NmeaRelayService#subscribe(int)}.
+ * <p>
+ * Sentences are copied by the relay worker to a bounded ring, without locks
+ * nor memory allocation. A single thread reads sentences with
+ * {@link #poll(NmeaSentence)} or {@link #take(NmeaSentence, long)}. When
+ * the subscriber is too slow and the ring is full, new sentences are dropped
+ * and counted: the relay is never slowed down by a subscriber.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaSubscription {
+    private final NmeaSentence[] slots;
+    private final int mask;
+    // Next slot to read: only written by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write: only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+    // Producer view of head, refreshed when the ring looks full.
+    private long producerHead;
+    // Consumer view of tail, refreshed when the ring looks empty.
+    private long consumerTail;
+    private volatile long droppedCount;
+    private volatile Thread waiter;
+    private volatile boolean closed;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param capacity
+     *            how many sentences may be buffered, rounded up to a power of
+     *            two
+     */
+    NmeaSubscription(int capacity) {
+        if (capacity < 1 || capacity > 1 << 16) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        final int n = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new NmeaSentence[Math.max(1, n)];
+        for (int i = 0; i < slots.length; ++i) {
+            slots[i] = new NmeaSentence();
+        }
+        mask = slots.length - 1;
+    }
+
+    /**
+     * Copy a sentence to this subscription. This method is called from the
+     * relay worker thread.
+     * 
+     * @return <code>false</code> if the ring is full: the sentence is dropped
+     */
+    boolean offer(NmeaSentence nmea) {
+        if (closed) {
+            return false;
+        }
+        final long t = tail.get();
+        if (t - producerHead >= slots.length) {
+            producerHead = head.get();
+            if (t - producerHead >= slots.length) {
+                droppedCount += 1;
+                return false;
+            }
+        }
+        slots[(int) t & mask].set(nmea);
+        // Volatile write: the waiter is read after the sentence is published.
+        tail.set(t + 1);
+        final Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Get the next sentence, if any. This method does not block.
+     * 
+     * @return <code>false</code> if no sentence is available
+     */
+    public boolean poll(NmeaSentence sentence) {
+        final long h = head.get();
+        if (h >= consumerTail) {
+            consumerTail = tail.get();
+            if (h >= consumerTail) {
+                return false;
+            }
+        }
+        sentence.set(slots[(int) h & mask]);
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Get the next sentence, waiting if none is available.
+     * 
+     * @param timeout
+     *            how long to wait, in milliseconds, or <code>0</code> to wait
+     *            forever
+     * @return <code>false</code> if no sentence was received before the
+     *         timeout, or if this subscription is closed
+     */
+    public boolean take(NmeaSentence sentence, long timeout) throws InterruptedException {
+        if (poll(sentence)) {
+            return true;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        waiter = Thread.currentThread();
+        try {
+            while (true) {
+                // Check again once the waiter is visible to the producer.
+                if (poll(sentence)) {
+                    return true;
+                }
+                if (closed) {
+                    return false;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (timeout == 0) {
+                    LockSupport.park(this);
+                } else {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Get how many sentences were dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close this subscription: no more sentences are received, and the
+     * waiting thread is woken up.
+     */
+    void close() {
+        closed = true;
+        final Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+}
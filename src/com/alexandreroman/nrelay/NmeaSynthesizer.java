@@ -0,0 +1,250 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Generate NMEA sentences from position fixes.
+ * <p>
+ * GGA, RMC and VTG sentences are written as ASCII bytes to a caller-supplied
+ * buffer, including checksum and line terminator. Numbers are formatted by
+ * hand: no memory is allocated.
+ * <p>
+ * Fixes come from Android locations, which only tell where the phone is:
+ * <ul>
+ * <li>a location is only reported with a fix, so GGA fix quality is always
+ * <code>1</code> (GPS fix) and RMC status is always <code>A</code>: how the
+ * fix was computed (differential, estimated...) is unknown;</li>
+ * <li>the talker is always <code>GP</code>, even if satellites from other
+ * constellations were used: locations do not tell which ones.</li>
+ * </ul>
+ * Consumers needing these details should get sentences from the GPS receiver
+ * (the default NMEA source), where the phone reports them.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class NmeaSynthesizer {
+    /**
+     * Buffer size required to hold any generated sentence.
+     */
+    public static final int MAX_LENGTH = 96;
+    /**
+     * User equivalent range error, in meters: used to estimate HDOP from
+     * horizontal accuracy.
+     */
+    private static final float UERE = 5;
+    private static final float METERS_PER_SECOND_TO_KNOTS = 3600f / 1852f;
+    private static final float METERS_PER_SECOND_TO_KMH = 3.6f;
+    private static final long DAY = 24 * 3600 * 1000L;
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000 };
+    private final byte[] digits = new byte[20];
+    private byte[] out;
+    private int pos;
+
+    /**
+     * Write a GGA sentence.
+     * 
+     * @return sentence length
+     */
+    public int gga(Fix fix, int satellitesInUse, byte[] buf) {
+        begin(buf, 'G', 'G', 'A');
+        writeTime(fix.time);
+        writeCoordinates(fix);
+        // Fix quality: GPS fix (see class documentation).
+        write('1');
+        write(',');
+        writeInt(Math.min(Math.max(satellitesInUse, 0), 99), 2);
+        write(',');
+        if (!Float.isNaN(fix.accuracy)) {
+            writeFixed(Math.min(Math.max(fix.accuracy / UERE, 0.5f), 99.9f), 1, 1);
+        }
+        write(',');
+        if (!Float.isNaN(fix.altitude)) {
+            writeFixed(fix.altitude, 1, 1);
+            write(',');
+            write('M');
+        } else {
+            write(',');
+        }
+        // Geoid separation and DGPS fields are empty.
+        write(",,,,");
+        return end();
+    }
+
+    /**
+     * Write a RMC sentence.
+     * 
+     * @return sentence length
+     */
+    public int rmc(Fix fix, byte[] buf) {
+        begin(buf, 'R', 'M', 'C');
+        writeTime(fix.time);
+        write('A');
+        write(',');
+        writeCoordinates(fix);
+        writeSpeed(fix.speed, METERS_PER_SECOND_TO_KNOTS);
+        write(',');
+        writeBearing(fix.bearing);
+        write(',');
+        writeDate(fix.time);
+        // Magnetic variation is unknown. Mode: autonomous.
+        write(",,,A");
+        return end();
+    }
+
+    /**
+     * Write a VTG sentence.
+     * 
+     * @return sentence length
+     */
+    public int vtg(Fix fix, byte[] buf) {
+        begin(buf, 'V', 'T', 'G');
+        writeBearing(fix.bearing);
+        write(",T,,M,");
+        writeSpeed(fix.speed, METERS_PER_SECOND_TO_KNOTS);
+        write(",N,");
+        writeSpeed(fix.speed, METERS_PER_SECOND_TO_KMH);
+        write(",K,A");
+        return end();
+    }
+
+    private void begin(byte[] buf, char c1, char c2, char c3) {
+        out = buf;
+        pos = 0;
+        write("$GP");
+        write(c1);
+        write(c2);
+        write(c3);
+        write(',');
+    }
+
+    private int end() {
+        final int sum = Nmea.checksum(out, 1, pos);
+        write('*');
+        out[pos++] = Nmea.hexDigit(sum >> 4);
+        out[pos++] = Nmea.hexDigit(sum);
+        write('\r');
+        write('\n');
+        out = null;
+        return pos;
+    }
+
+    private void writeTime(long time) {
+        // Time is formatted as hhmmss.ss.
+        final long timeOfDay = time - floorDiv(time, DAY) * DAY;
+        final int seconds = (int) (timeOfDay / 1000);
+        writeInt(seconds / 3600, 2);
+        writeInt(seconds / 60 % 60, 2);
+        writeInt(seconds % 60, 2);
+        write('.');
+        writeInt(timeOfDay % 1000 / 10, 2);
+        write(',');
+    }
+
+    private void writeDate(long time) {
+        // Date is formatted as ddmmyy: convert days since epoch to a date in
+        // the Gregorian calendar.
+        final long z = floorDiv(time, DAY) + 719468;
+        final long era = (z >= 0 ? z : z - 146096) / 146097;
+        final int doe = (int) (z - era * 146097);
+        final int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        final int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        final int mp = (5 * doy + 2) / 153;
+        final int d = doy - (153 * mp + 2) / 5 + 1;
+        final int m = mp < 10 ? mp + 3 : mp - 9;
+        final long y = yoe + era * 400 + (m <= 2 ? 1 : 0);
+        writeInt(d, 2);
+        writeInt(m, 2);
+        writeInt(y % 100, 2);
+    }
+
+    private void writeCoordinates(Fix fix) {
+        writeCoordinate(fix.latitude, 2);
+        write(fix.latitude < 0 ? 'S' : 'N');
+        write(',');
+        writeCoordinate(fix.longitude, 3);
+        write(fix.longitude < 0 ? 'W' : 'E');
+        write(',');
+    }
+
+    private void writeCoordinate(double coord, int degreeDigits) {
+        // Coordinates are formatted as (d)ddmm.mmmmm.
+        final long minutesScale = POWERS_OF_TEN[5];
+        final long total = Math.round(Math.abs(coord) * 60 * minutesScale);
+        final long degrees = total / (60 * minutesScale);
+        final long minutes = total % (60 * minutesScale);
+        writeInt(degrees, degreeDigits);
+        writeInt(minutes / minutesScale, 2);
+        write('.');
+        writeInt(minutes % minutesScale, 5);
+        write(',');
+    }
+
+    private void writeSpeed(float speed, float factor) {
+        if (!Float.isNaN(speed)) {
+            writeFixed(speed * factor, 1, 1);
+        }
+    }
+
+    private void writeBearing(float bearing) {
+        if (!Float.isNaN(bearing)) {
+            writeFixed(bearing, 1, 1);
+        }
+    }
+
+    private void writeFixed(double value, int minIntDigits, int decimals) {
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        final long scale = POWERS_OF_TEN[decimals];
+        final long scaled = Math.round(value * scale);
+        writeInt(scaled / scale, minIntDigits);
+        if (decimals != 0) {
+            write('.');
+            writeInt(scaled % scale, decimals);
+        }
+    }
+
+    private void writeInt(long value, int minDigits) {
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = n; i < minDigits; ++i) {
+            write('0');
+        }
+        while (n != 0) {
+            out[pos++] = digits[--n];
+        }
+    }
+
+    private void write(char c) {
+        out[pos++] = (byte) c;
+    }
+
+    private void write(String str) {
+        for (int i = 0; i < str.length(); ++i) {
+            out[pos++] = (byte) str.charAt(i);
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        final long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,31 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Pipeline stage dropping proprietary sentences (<code>$P...</code>), which
+ * some consumers reject. Sentences generated by the relay itself, such as
+ * heartbeats, are not concerned: they are sent by {@link RelayClient}.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class ProprietaryFilterStage implements RelayStage {
+    @Override
+    public boolean process(NmeaSentence nmea) {
+        return nmea.length < 2 || nmea.data[0] != '$' || nmea.data[1] != 'P';
+    }
+}
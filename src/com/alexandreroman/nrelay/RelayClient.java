@@ -0,0 +1,430 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * TCP client sending NMEA sentences to a server, with failover to backup
+ * servers.
+ * <p>
+ * Destinations are tried in order. Dead servers are detected with an
+ * application-level heartbeat: a <code>$PNRHB</code> sentence is sent
+ * periodically, and the server is considered dead when nothing was received
+ * for a few heartbeat intervals. Servers which never send anything (plain NMEA
+ * consumers) are not subject to this check: the heartbeat is only enforced
+ * once the server answered. <code>RelayHub</code> (in the benchmarks) echoes
+ * heartbeats.
+ * <p>
+ * When a backup server is used, the primary server is probed periodically:
+ * the connection is switched back to the primary server as soon as it is
+ * reachable again.
+ * <p>
+ * This class is not thread-safe: it is meant to be used by a single thread,
+ * which must call {@link #tick()} at least every {@link #getTickDelay()}
+ * milliseconds.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class RelayClient implements Closeable {
+    private static final long CONNECT_TIMEOUT = 1000;
+    private static final long WRITE_TIMEOUT = 4000;
+    private static final long RETRY_DELAY = 1000;
+    private static final long PROBE_INTERVAL = 5000;
+    private final List<InetSocketAddress> destinations;
+    private final long heartbeatInterval;
+    private final long deadPeerTimeout;
+    private final byte[] hello;
+    private final int helloLength;
+    private final Selector selector;
+    private final ByteBuffer out = ByteBuffer.allocate(512);
+    private final ByteBuffer in = ByteBuffer.allocate(512);
+    private final byte[] heartbeat = new byte[32];
+    private final StringBuilder heartbeatBody = new StringBuilder(16);
+    private int heartbeatSeq;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private int current = -1;
+    private boolean peerAnswers;
+    private long lastReceived;
+    private long lastHeartbeat;
+    private long nextConnect;
+    private SocketChannel probe;
+    private long probeStart;
+    private long nextProbe;
+    private long failoverCount;
+    private IOException lastFailure;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param destinations
+     *            servers, primary first; addresses may be unresolved
+     * @param heartbeatInterval
+     *            heartbeat interval, in milliseconds, or 0 to disable
+     *            heartbeat
+     * @param heartbeatMisses
+     *            how many heartbeats may be missed before the server is
+     *            considered dead
+     * @param sourceId
+     *            identifier sent when connecting, or <code>null</code>
+     */
+    public RelayClient(List<InetSocketAddress> destinations, long heartbeatInterval,
+            int heartbeatMisses, String sourceId) throws IOException {
+        if (destinations.isEmpty()) {
+            throw new IllegalArgumentException("No destination");
+        }
+        if (heartbeatInterval < 0 || heartbeatMisses < 1) {
+            throw new IllegalArgumentException("Invalid heartbeat settings");
+        }
+        this.destinations = destinations;
+        this.heartbeatInterval = heartbeatInterval;
+        this.deadPeerTimeout = heartbeatInterval * heartbeatMisses;
+
+        if (sourceId != null && sourceId.length() != 0) {
+            // Identify this relay: $PNRID,<id>*hh
+            final StringBuilder body = new StringBuilder("PNRID,");
+            for (int i = 0; i < sourceId.length() && i < 32; ++i) {
+                final char c = sourceId.charAt(i);
+                body.append(c == ',' || c == '*' || c > 127 ? '_' : c);
+            }
+            hello = new byte[body.length() + 6];
+            helloLength = Nmea.encode(body, hello, 0);
+        } else {
+            hello = null;
+            helloLength = 0;
+        }
+        selector = Selector.open();
+    }
+
+    /**
+     * Send a sentence. If the current server fails, the sentence is sent to
+     * the next reachable server.
+     * 
+     * @return <code>false</code> if no server is reachable: the sentence is
+     *         dropped
+     */
+    public boolean send(byte[] data, int offset, int length) throws IOException {
+        for (int attempt = 0; attempt < destinations.size(); ++attempt) {
+            if (channel == null && !connect()) {
+                return false;
+            }
+            try {
+                out.clear();
+                out.put(data, offset, length);
+                out.flip();
+                write();
+                return true;
+            } catch (IOException e) {
+                failover(e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Connect to a server now, so that the first sentence is not delayed by
+     * a connection.
+     * 
+     * @return <code>false</code> if no server is reachable
+     */
+    public boolean open() throws IOException {
+        return channel != null || connect();
+    }
+
+    /**
+     * Let the next connection attempt run right away, instead of waiting for
+     * the retry delay following a failed attempt.
+     */
+    public void resetRetryDelay() {
+        nextConnect = 0;
+    }
+
+    /**
+     * Send heartbeats, check that the server is alive, and probe the
+     * primary server.
+     */
+    public void tick() throws IOException {
+        final long now = System.currentTimeMillis();
+        if (channel != null) {
+            try {
+                read(now);
+                if (peerAnswers && deadPeerTimeout != 0 && now - lastReceived > deadPeerTimeout) {
+                    throw new IOException("No heartbeat from server for " + (now - lastReceived)
+                            + " ms");
+                }
+                if (heartbeatInterval != 0 && now - lastHeartbeat >= heartbeatInterval) {
+                    sendHeartbeat(now);
+                }
+            } catch (IOException e) {
+                failover(e);
+                if (channel == null) {
+                    connect();
+                }
+            }
+        }
+        if (current > 0) {
+            probePrimary(now);
+        }
+    }
+
+    /**
+     * Get how long to wait before calling {@link #tick()}, in milliseconds.
+     */
+    public long getTickDelay() {
+        if (channel == null) {
+            return RETRY_DELAY;
+        }
+        if (heartbeatInterval == 0) {
+            return current > 0 ? CONNECT_TIMEOUT / 4 : RETRY_DELAY;
+        }
+        return Math.max(1, Math.min(heartbeatInterval / 2, CONNECT_TIMEOUT / 4));
+    }
+
+    /**
+     * Get the index of the server in use, or <code>-1</code> if not
+     * connected.
+     */
+    public int getCurrentDestination() {
+        return channel == null ? -1 : current;
+    }
+
+    /**
+     * Get how many times a server connection failed.
+     */
+    public long getFailoverCount() {
+        return failoverCount;
+    }
+
+    /**
+     * Get the last connection error, if any.
+     */
+    public IOException getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public void close() {
+        closeChannel();
+        closeProbe();
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private boolean connect() throws IOException {
+        final long now = System.currentTimeMillis();
+        if (now < nextConnect) {
+            return false;
+        }
+        // Start with the server following the failed one.
+        final int n = destinations.size();
+        for (int i = 1; i <= n; ++i) {
+            final int index = (current + i + n) % n;
+            try {
+                connect(index);
+                return true;
+            } catch (IOException e) {
+                if (e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+                lastFailure = e;
+            }
+        }
+        current = -1;
+        nextConnect = System.currentTimeMillis() + RETRY_DELAY;
+        return false;
+    }
+
+    private void connect(int index) throws IOException {
+        final InetSocketAddress addr = resolve(destinations.get(index));
+        final SocketChannel ch = SocketChannel.open();
+        try {
+            ch.configureBlocking(false);
+            if (!ch.connect(addr)) {
+                final SelectionKey k = ch.register(selector, SelectionKey.OP_CONNECT);
+                selector.select(CONNECT_TIMEOUT);
+                selector.selectedKeys().clear();
+                k.cancel();
+                if (!ch.finishConnect()) {
+                    throw new IOException("Connection timeout: " + addr);
+                }
+                // Flush cancelled key, before registering this channel again.
+                selector.selectNow();
+            }
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        use(ch, index);
+    }
+
+    private void use(SocketChannel ch, int index) throws IOException {
+        ch.socket().setTcpNoDelay(true);
+        channel = ch;
+        key = ch.register(selector, 0);
+        current = index;
+        peerAnswers = false;
+        lastReceived = lastHeartbeat = System.currentTimeMillis();
+        nextProbe = lastReceived + PROBE_INTERVAL;
+        in.clear();
+        if (hello != null) {
+            out.clear();
+            out.put(hello, 0, helloLength);
+            out.flip();
+            try {
+                write();
+            } catch (IOException e) {
+                closeChannel();
+                throw e;
+            }
+        }
+    }
+
+    private static InetSocketAddress resolve(InetSocketAddress addr) throws IOException {
+        if (!addr.isUnresolved()) {
+            return addr;
+        }
+        final InetSocketAddress resolved = new InetSocketAddress(addr.getHostName(),
+                addr.getPort());
+        if (resolved.isUnresolved()) {
+            throw new IOException("Cannot resolve server address: " + addr.getHostName());
+        }
+        return resolved;
+    }
+
+    private void failover(IOException cause) {
+        lastFailure = cause;
+        closeChannel();
+        failoverCount += 1;
+        // Connect to the next server right now.
+        nextConnect = 0;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            channel = null;
+            key = null;
+        }
+    }
+
+    private void write() throws IOException {
+        final long start = System.currentTimeMillis();
+        while (out.hasRemaining()) {
+            if (channel.write(out) == 0) {
+                // Socket buffer is full: wait until the server reads.
+                final long remaining = WRITE_TIMEOUT - (System.currentTimeMillis() - start);
+                if (remaining <= 0) {
+                    throw new IOException("Write timeout");
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+                key.interestOps(0);
+            }
+        }
+    }
+
+    private void read(long now) throws IOException {
+        while (true) {
+            in.clear();
+            final int n = channel.read(in);
+            if (n < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            if (n == 0) {
+                return;
+            }
+            // Anything sent by the server proves it is alive.
+            peerAnswers = true;
+            lastReceived = now;
+        }
+    }
+
+    private void sendHeartbeat(long now) throws IOException {
+        heartbeatSeq = (heartbeatSeq + 1) % 1000000;
+        heartbeatBody.setLength(0);
+        heartbeatBody.append("PNRHB,").append(heartbeatSeq);
+        final int len = Nmea.encode(heartbeatBody, heartbeat, 0);
+        out.clear();
+        out.put(heartbeat, 0, len);
+        out.flip();
+        write();
+        lastHeartbeat = now;
+    }
+
+    private void probePrimary(long now) {
+        try {
+            if (probe == null) {
+                if (now < nextProbe) {
+                    return;
+                }
+                probe = SocketChannel.open();
+                probe.configureBlocking(false);
+                probeStart = now;
+                if (!probe.connect(resolve(destinations.get(0)))) {
+                    return;
+                }
+            } else if (!probe.finishConnect()) {
+                if (now - probeStart > CONNECT_TIMEOUT) {
+                    closeProbe();
+                    nextProbe = now + PROBE_INTERVAL;
+                }
+                return;
+            }
+        } catch (IOException e) {
+            closeProbe();
+            nextProbe = now + PROBE_INTERVAL;
+            return;
+        }
+
+        // Primary server is back: switch to it.
+        final SocketChannel ch = probe;
+        probe = null;
+        closeChannel();
+        try {
+            use(ch, 0);
+        } catch (IOException e) {
+            lastFailure = e;
+            nextConnect = 0;
+        }
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            try {
+                probe.close();
+            } catch (IOException ignore) {
+            }
+            probe = null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Relay configuration snapshot.
+ * <p>
+ * Instances are immutable: when preferences are updated, a new snapshot is
+ * built and published, so that the worker thread reads its configuration
+ * with a single volatile load, without parsing preferences.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class RelayConfig {
+    /**
+     * Destination: relay servers.
+     */
+    public static final int DESTINATION_RELAY = 0;
+    /**
+     * Destination: stream server.
+     */
+    public static final int DESTINATION_STREAM = 1;
+    /**
+     * Destination: MQTT broker.
+     */
+    public static final int DESTINATION_MQTT = 2;
+    private static final int DESTINATION_COUNT = 3;
+    private final boolean networkReady;
+    private final List<InetSocketAddress> destinations;
+    private final long heartbeatInterval;
+    private final int heartbeatMisses;
+    private final String sourceId;
+    private final boolean stripProprietary;
+    private final RelayStage talkerRewrite;
+    private final TransformProfile[] profiles;
+    private final long probeInterval;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param destinations
+     *            servers, primary first; the list may be empty if no server
+     *            is set
+     * @param talkerId
+     *            talker identifier set to standard sentences, or
+     *            <code>null</code> to keep sentences unchanged
+     * @param profiles
+     *            transformation profile of each destination (such as
+     *            {@link #DESTINATION_RELAY}), or <code>null</code> entries for
+     *            destinations getting sentences unchanged
+     * @param probeInterval
+     *            interval between probe sentences (see {@link NmeaProbe}), in
+     *            milliseconds, or <code>0</code> to disable probes
+     */
+    public RelayConfig(boolean networkReady, List<InetSocketAddress> destinations,
+            long heartbeatInterval, int heartbeatMisses, String sourceId, String talkerId,
+            boolean stripProprietary, TransformProfile[] profiles, long probeInterval) {
+        this.networkReady = networkReady;
+        this.destinations = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(
+                destinations));
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatMisses = heartbeatMisses;
+        this.sourceId = sourceId;
+        this.stripProprietary = stripProprietary;
+        this.talkerRewrite = talkerId == null ? null : new TalkerRewriteStage(talkerId);
+        this.probeInterval = probeInterval;
+        this.profiles = new TransformProfile[DESTINATION_COUNT];
+        // Destinations with the same profile share a single instance.
+        for (int i = 0; i < DESTINATION_COUNT && i < profiles.length; ++i) {
+            this.profiles[i] = profiles[i];
+            for (int j = 0; j < i; ++j) {
+                if (profiles[i] != null && profiles[i].equals(this.profiles[j])) {
+                    this.profiles[i] = this.profiles[j];
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean isNetworkReady() {
+        return networkReady;
+    }
+
+    public List<InetSocketAddress> getDestinations() {
+        return destinations;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public int getHeartbeatMisses() {
+        return heartbeatMisses;
+    }
+
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    public boolean isStripProprietary() {
+        return stripProprietary;
+    }
+
+    /**
+     * Get the stage rewriting talker identifiers, or <code>null</code> if
+     * sentences are kept unchanged.
+     */
+    public RelayStage getTalkerRewrite() {
+        return talkerRewrite;
+    }
+
+    public long getProbeInterval() {
+        return probeInterval;
+    }
+
+    /**
+     * Get the transformation profile of a destination, or <code>null</code>
+     * if sentences are sent unchanged.
+     * 
+     * @param destination
+     *            destination, such as {@link #DESTINATION_RELAY}
+     */
+    public TransformProfile getProfile(int destination) {
+        return profiles[destination];
+    }
+
+    /**
+     * Tell if a client created from this configuration would be the same as
+     * one created from another configuration.
+     */
+    public boolean hasSameTransport(RelayConfig other) {
+        return other != null
+                && destinations.equals(other.destinations)
+                && heartbeatInterval == other.heartbeatInterval
+                && heartbeatMisses == other.heartbeatMisses
+                && (sourceId == null ? other.sourceId == null : sourceId.equals(other.sourceId));
+    }
+
+    /**
+     * Create a client sending sentences to the configured servers.
+     */
+    public RelayClient createClient() throws IOException {
+        if (destinations.isEmpty()) {
+            throw new IOException("No server address set");
+        }
+        return new RelayClient(destinations, heartbeatInterval, heartbeatMisses, sourceId);
+    }
+
+    @Override
+    public String toString() {
+        return "servers: " + destinations + ", heartbeat: " + heartbeatInterval + " ms x "
+                + heartbeatMisses + ", network ready: " + networkReady;
+    }
+}
@@ -0,0 +1,140 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Chain of {@link RelayStage}s, run in order on the worker thread.
+ * <p>
+ * Sentences are handed from stage to stage in place: there is no queue
+ * between stages. Each stage is measured: how many sentences it processed and
+ * dropped, and how long it took. Stages are added before the pipeline is
+ * used. Statistics may be read from any thread: values may be slightly
+ * outdated.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class RelayPipeline {
+    private String[] names = new String[0];
+    private RelayStage[] stages = new RelayStage[0];
+    private long[] processed = new long[0];
+    private long[] dropped = new long[0];
+    private long[] time = new long[0];
+
+    /**
+     * Add a stage at the end of this pipeline.
+     * 
+     * @param name
+     *            stage name, used for reporting statistics
+     * @return this pipeline
+     */
+    public RelayPipeline add(String name, RelayStage stage) {
+        if (name == null || stage == null) {
+            throw new IllegalArgumentException("Stage name and stage are required");
+        }
+        final int n = stages.length;
+        names = Arrays.copyOf(names, n + 1);
+        stages = Arrays.copyOf(stages, n + 1);
+        names[n] = name;
+        stages[n] = stage;
+        processed = new long[n + 1];
+        dropped = new long[n + 1];
+        time = new long[n + 1];
+        return this;
+    }
+
+    /**
+     * Run a sentence through all stages.
+     * 
+     * @return <code>false</code> if a stage dropped this sentence
+     */
+    public boolean process(NmeaSentence nmea) throws IOException {
+        final RelayStage[] stages = this.stages;
+        for (int i = 0; i < stages.length; ++i) {
+            final long start = System.nanoTime();
+            final boolean accepted;
+            try {
+                accepted = stages[i].process(nmea);
+            } finally {
+                time[i] += System.nanoTime() - start;
+                processed[i] += 1;
+            }
+            if (!accepted) {
+                dropped[i] += 1;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    public String getStageName(int stage) {
+        return names[stage];
+    }
+
+    /**
+     * Get how many sentences a stage processed.
+     */
+    public long getProcessedCount(int stage) {
+        return processed[stage];
+    }
+
+    /**
+     * Get how many sentences a stage dropped.
+     */
+    public long getDroppedCount(int stage) {
+        return dropped[stage];
+    }
+
+    /**
+     * Get how long a stage spent processing sentences, in nanoseconds.
+     */
+    public long getTime(int stage) {
+        return time[stage];
+    }
+
+    /**
+     * Reset statistics.
+     */
+    public void resetStats() {
+        for (int i = 0; i < stages.length; ++i) {
+            processed[i] = dropped[i] = time[i] = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(64 * stages.length);
+        for (int i = 0; i < stages.length; ++i) {
+            if (i != 0) {
+                buf.append(", ");
+            }
+            final long n = processed[i];
+            buf.append(names[i]).append(": ").append(n).append(" processed, ")
+                    .append(dropped[i]).append(" dropped, ");
+            buf.append(String.format(Locale.ENGLISH, "%.1f", n == 0 ? 0 : time[i] / 1000.0 / n))
+                    .append(" us/sentence");
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,40 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.IOException;
+
+/**
+ * Stage of a {@link RelayPipeline}.
+ * <p>
+ * A stage may be a filter (dropping sentences), a transform (updating
+ * sentence bytes in place), a tap (observing sentences) or a sink (sending
+ * sentences somewhere). Stages are called from the worker thread, one after
+ * the other: they should neither block for long nor allocate memory.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+interface RelayStage {
+    /**
+     * Process a sentence. Sentence bytes may be updated, up to
+     * {@link NmeaSentence#MAX_LENGTH} bytes.
+     * 
+     * @return <code>false</code> if the sentence is dropped: next stages are
+     *         not called
+     */
+    boolean process(NmeaSentence nmea) throws IOException;
+}
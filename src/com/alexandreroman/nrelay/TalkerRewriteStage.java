@@ -0,0 +1,59 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Pipeline stage rewriting the talker identifier of standard sentences, such
+ * as <code>$GNGGA</code> to <code>$GPGGA</code>, for consumers which only
+ * accept GPS sentences. The checksum is updated in place. Proprietary
+ * sentences are left unchanged.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class TalkerRewriteStage implements RelayStage {
+    private final byte talker0;
+    private final byte talker1;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param talker
+     *            two-letter talker identifier, such as <code>GP</code>
+     */
+    public TalkerRewriteStage(String talker) {
+        if (talker == null || talker.length() != 2 || talker.charAt(0) > 127
+                || talker.charAt(1) > 127) {
+            throw new IllegalArgumentException("Invalid talker identifier: " + talker);
+        }
+        talker0 = (byte) talker.charAt(0);
+        talker1 = (byte) talker.charAt(1);
+    }
+
+    @Override
+    public boolean process(NmeaSentence nmea) {
+        final byte[] d = nmea.data;
+        final int len = nmea.length;
+        if (len < 7 || d[0] != '$' || d[1] == 'P') {
+            return true;
+        }
+        final int delta = d[1] ^ d[2] ^ talker0 ^ talker1;
+        d[1] = talker0;
+        d[2] = talker1;
+        Nmea.updateChecksum(d, len, delta);
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reduce the number of fixes in a track store.
+ * <p>
+ * Closed segments are compacted one at a time: fixes close to the previous
+ * kept fix are dropped (a boat at anchor is reduced to a single fix), then the
+ * track is simplified using the Douglas-Peucker algorithm. Each step uses half
+ * of the tolerance, so that the distance between the original track and the
+ * compacted one never exceeds the tolerance. Simplification is done on
+ * fixed-size windows: memory usage does not depend on segment size.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class TrackCompactor implements Runnable {
+    private static final int WINDOW_SIZE = 1024;
+    private static final int WRITE_BATCH = 64;
+    private static final double EARTH_RADIUS = 6371000;
+    private final TrackStore store;
+    private final double tolerance;
+    private volatile IOException failure;
+    private final Fix fix = new Fix();
+    private final double[] latitudes = new double[WINDOW_SIZE];
+    private final double[] longitudes = new double[WINDOW_SIZE];
+    private final int[] windowIndexes = new int[WINDOW_SIZE];
+    private final double[] x = new double[WINDOW_SIZE];
+    private final double[] y = new double[WINDOW_SIZE];
+    private final boolean[] kept = new boolean[WINDOW_SIZE];
+    private final int[] stack = new int[WINDOW_SIZE * 2];
+    private final ByteBuffer out = ByteBuffer.allocate(WRITE_BATCH * TrackStore.RECORD_SIZE);
+    private ByteBuffer in;
+    private FileChannel outChannel;
+    private int windowSize;
+    private long inputCount;
+    private long outputCount;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param tolerance
+     *            maximum distance between original and compacted tracks, in
+     *            meters
+     */
+    public TrackCompactor(TrackStore store, double tolerance) {
+        if (tolerance <= 0) {
+            throw new IllegalArgumentException("Invalid tolerance: " + tolerance);
+        }
+        this.store = store;
+        this.tolerance = tolerance / 2;
+    }
+
+    @Override
+    public void run() {
+        try {
+            File segment;
+            while ((segment = store.nextCompactableSegment()) != null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final File compacted = compact(segment);
+                if (compacted == null) {
+                    return;
+                }
+                store.replaceSegment(segment, compacted);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Get the error which stopped compaction, if any.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Get how many fixes were read.
+     */
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    /**
+     * Get how many fixes were kept.
+     */
+    public long getOutputCount() {
+        return outputCount;
+    }
+
+    private File compact(File segment) throws IOException {
+        final File tmp = new File(segment.getPath() + TrackStore.TEMP_EXT);
+        final RandomAccessFile inFile = new RandomAccessFile(segment, "r");
+        final RandomAccessFile outFile = new RandomAccessFile(tmp, "rw");
+        boolean done = false;
+        try {
+            outFile.setLength(0);
+            outChannel = outFile.getChannel();
+            in = inFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, inFile.length());
+            final int count = (int) (inFile.length() / TrackStore.RECORD_SIZE);
+
+            windowSize = 0;
+            double anchorLatitude = 0;
+            double anchorLongitude = 0;
+            for (int i = 0; i < count; ++i) {
+                if ((i & 0xfff) == 0 && Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                final int pos = i * TrackStore.RECORD_SIZE;
+                final double lat = in.getDouble(pos + 8);
+                final double lon = in.getDouble(pos + 16);
+                inputCount += 1;
+
+                // Skip fixes close to the last kept fix, except the last one
+                // of the segment.
+                if (windowSize != 0 && i != count - 1
+                        && distance(anchorLatitude, anchorLongitude, lat, lon) <= tolerance) {
+                    continue;
+                }
+                anchorLatitude = lat;
+                anchorLongitude = lon;
+
+                windowIndexes[windowSize] = i;
+                latitudes[windowSize] = lat;
+                longitudes[windowSize] = lon;
+                windowSize += 1;
+                if (windowSize == WINDOW_SIZE) {
+                    flushWindow(false);
+                }
+            }
+            flushWindow(true);
+            flushOutput();
+            done = true;
+        } finally {
+            in = null;
+            outChannel = null;
+            inFile.close();
+            outFile.close();
+            if (!done) {
+                tmp.delete();
+            }
+        }
+        return tmp;
+    }
+
+    private void flushWindow(boolean last) throws IOException {
+        if (windowSize == 0) {
+            return;
+        }
+        simplify();
+
+        // The last fix of a window is kept as the first fix of the next
+        // window: it is written when the next window is flushed.
+        final int end = last ? windowSize : windowSize - 1;
+        for (int i = 0; i < end; ++i) {
+            if (kept[i]) {
+                writeFix(windowIndexes[i]);
+            }
+        }
+        if (!last) {
+            windowIndexes[0] = windowIndexes[windowSize - 1];
+            latitudes[0] = latitudes[windowSize - 1];
+            longitudes[0] = longitudes[windowSize - 1];
+            windowSize = 1;
+        } else {
+            windowSize = 0;
+        }
+    }
+
+    private void simplify() {
+        // Project coordinates to a local plane, in meters.
+        final double cosLat = Math.cos(Math.toRadians(latitudes[0]));
+        for (int i = 0; i < windowSize; ++i) {
+            x[i] = Math.toRadians(longitudes[i] - longitudes[0]) * cosLat * EARTH_RADIUS;
+            y[i] = Math.toRadians(latitudes[i] - latitudes[0]) * EARTH_RADIUS;
+            kept[i] = false;
+        }
+        kept[0] = true;
+        kept[windowSize - 1] = true;
+
+        // Iterative Douglas-Peucker.
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = windowSize - 1;
+        while (top != 0) {
+            final int last = stack[--top];
+            final int first = stack[--top];
+            double maxDistance = 0;
+            int farthest = -1;
+            for (int i = first + 1; i < last; ++i) {
+                final double d = segmentDistance(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    farthest = i;
+                }
+            }
+            if (farthest != -1 && maxDistance > tolerance) {
+                kept[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+    }
+
+    private static double segmentDistance(double px, double py, double ax, double ay, double bx,
+            double by) {
+        final double dx = bx - ax;
+        final double dy = by - ay;
+        final double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / len2;
+        t = Math.max(0, Math.min(1, t));
+        final double ex = px - (ax + t * dx);
+        final double ey = py - (ay + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        final double cosLat = Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        final double dx = Math.toRadians(lon2 - lon1) * cosLat;
+        final double dy = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(dx * dx + dy * dy) * EARTH_RADIUS;
+    }
+
+    private void writeFix(int index) throws IOException {
+        TrackStore.read(in, index, fix);
+        TrackStore.write(out, fix);
+        outputCount += 1;
+        if (!out.hasRemaining()) {
+            flushOutput();
+        }
+    }
+
+    private void flushOutput() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            outChannel.write(out);
+        }
+        out.clear();
+    }
+}
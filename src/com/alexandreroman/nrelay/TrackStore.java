@@ -0,0 +1,434 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Store position fixes on disk.
+ * <p>
+ * Fixes are written as fixed-size binary records to segment files, in
+ * ascending time order. Each segment is named after the time of its first
+ * fix. A sparse time index is kept in memory for each segment: fixes in a
+ * time range are found by binary search, without reading whole segments.
+ * <p>
+ * Closed segments may be replaced by compacted segments, using
+ * {@link TrackCompactor}.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class TrackStore implements Closeable {
+    /**
+     * Interface for reading fixes from the store.
+     */
+    public interface Visitor {
+        /**
+         * This method is called for each fix. The fix instance is reused
+         * between calls.
+         */
+        void onFix(Fix fix);
+    }
+
+    /**
+     * Size of a fix record, in bytes.
+     */
+    static final int RECORD_SIZE = 40;
+    /**
+     * Segment file extension.
+     */
+    static final String SEGMENT_EXT = ".trk";
+    /**
+     * Compacted segment file extension.
+     */
+    static final String COMPACTED_SEGMENT_EXT = ".ctrk";
+    /**
+     * Extension appended to a segment file while it is being compacted.
+     */
+    static final String TEMP_EXT = ".tmp";
+    /**
+     * Index one record out of this many.
+     */
+    private static final int INDEX_INTERVAL = 256;
+    private final File dir;
+    private final int maxSegmentRecords;
+    private final List<Segment> segments = new ArrayList<Segment>(8);
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final Fix fix = new Fix();
+    private RandomAccessFile activeFile;
+
+    /**
+     * Open a store.
+     * 
+     * @param dir
+     *            directory holding segment files
+     * @param maxSegmentRecords
+     *            how many fixes a segment may hold
+     */
+    public TrackStore(File dir, int maxSegmentRecords) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory: " + dir);
+        }
+        this.dir = dir;
+        this.maxSegmentRecords = maxSegmentRecords;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                if (f.getName().endsWith(SEGMENT_EXT + TEMP_EXT)) {
+                    // Left by a compaction which was killed.
+                    f.delete();
+                    continue;
+                }
+                if (!isSegmentFile(f)) {
+                    continue;
+                }
+                if (!isCompacted(f) && compactedFile(f).exists()) {
+                    // This segment was compacted, but was not deleted.
+                    f.delete();
+                    continue;
+                }
+                final Segment s = new Segment(f);
+                if (s.count != 0) {
+                    segments.add(s);
+                }
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment lhs, Segment rhs) {
+                return lhs.firstTime < rhs.firstTime ? -1 : lhs.firstTime == rhs.firstTime ? 0 : 1;
+            }
+        });
+    }
+
+    static boolean isSegmentFile(File f) {
+        return f.isFile()
+                && (f.getName().endsWith(SEGMENT_EXT) || f.getName().endsWith(
+                        COMPACTED_SEGMENT_EXT));
+    }
+
+    private static boolean isCompacted(File f) {
+        return f.getName().endsWith(COMPACTED_SEGMENT_EXT);
+    }
+
+    private static File compactedFile(File f) {
+        final String name = f.getName();
+        return new File(f.getParentFile(), name.substring(0, name.length() - SEGMENT_EXT.length())
+                + COMPACTED_SEGMENT_EXT);
+    }
+
+    /**
+     * Append a fix to the store. Fixes must be appended in ascending time
+     * order: older fixes are ignored.
+     * 
+     * @return <code>true</code> if this fix was stored
+     */
+    public synchronized boolean append(Fix f) throws IOException {
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active != null && f.time <= active.lastTime) {
+            return false;
+        }
+        if (activeFile == null || active.count >= maxSegmentRecords) {
+            closeActiveFile();
+            active = new Segment(new File(dir, f.time + SEGMENT_EXT));
+            segments.add(active);
+            activeFile = new RandomAccessFile(active.file, "rw");
+        }
+
+        record.clear();
+        write(record, f);
+        record.flip();
+        final FileChannel channel = activeFile.getChannel();
+        long pos = active.count * (long) RECORD_SIZE;
+        while (record.hasRemaining()) {
+            pos += channel.write(record, pos);
+        }
+        active.append(f.time);
+        return true;
+    }
+
+    /**
+     * Read fixes between two dates.
+     * 
+     * @param from
+     *            start time (inclusive), in milliseconds
+     * @param to
+     *            end time (inclusive), in milliseconds
+     */
+    public synchronized void query(long from, long to, Visitor visitor) throws IOException {
+        downsample(from, to, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Read fixes between two dates, keeping at most a given number of fixes
+     * evenly distributed in this time range.
+     */
+    public synchronized void downsample(long from, long to, int maxFixes, Visitor visitor)
+            throws IOException {
+        if (maxFixes < 1 || from > to) {
+            return;
+        }
+
+        // Find matching records in each segment, without reading them.
+        long total = 0;
+        final int n = segments.size();
+        final int[] starts = new int[n];
+        final int[] ends = new int[n];
+        for (int i = 0; i < n; ++i) {
+            final Segment s = segments.get(i);
+            if (s.lastTime < from || s.firstTime > to) {
+                continue;
+            }
+            starts[i] = s.lowerBound(from);
+            ends[i] = s.lowerBound(to == Long.MAX_VALUE ? to : to + 1);
+            total += ends[i] - starts[i];
+        }
+        if (total == 0) {
+            return;
+        }
+
+        final long stride = (total + maxFixes - 1) / maxFixes;
+        long skip = 0;
+        for (int i = 0; i < n; ++i) {
+            if (ends[i] <= starts[i]) {
+                continue;
+            }
+            final Segment s = segments.get(i);
+            final ByteBuffer buf = s.map();
+            int index = (int) (starts[i] + skip);
+            for (; index < ends[i]; index += stride) {
+                read(buf, index, fix);
+                visitor.onFix(fix);
+            }
+            skip = index - ends[i];
+        }
+    }
+
+    /**
+     * Get the number of segments.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Get the next closed segment which is not compacted yet, or
+     * <code>null</code> if there is none.
+     */
+    synchronized File nextCompactableSegment() {
+        final int n = activeFile == null ? segments.size() : segments.size() - 1;
+        for (int i = 0; i < n; ++i) {
+            final File f = segments.get(i).file;
+            if (!isCompacted(f)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replace a closed segment with a compacted one.
+     *
+     * @param segmentFile
+     *            segment file to replace
+     * @param compactedFile
+     *            temporary file holding compacted fixes
+     */
+    synchronized void replaceSegment(File segmentFile, File compactedFile) throws IOException {
+        for (int i = 0; i < segments.size(); ++i) {
+            if (segments.get(i).file.equals(segmentFile)) {
+                final File target = compactedFile(segmentFile);
+                if (!compactedFile.renameTo(target)) {
+                    throw new IOException("Cannot rename compacted segment: " + compactedFile);
+                }
+                final Segment s = new Segment(target);
+                if (s.count == 0) {
+                    segments.remove(i);
+                    target.delete();
+                } else {
+                    segments.set(i, s);
+                }
+                segmentFile.delete();
+                return;
+            }
+        }
+        compactedFile.delete();
+    }
+
+    /**
+     * Get the time of the first fix in the store, or <code>-1</code> if the
+     * store is empty.
+     */
+    public synchronized long getFirstTime() {
+        return segments.isEmpty() ? -1 : segments.get(0).firstTime;
+    }
+
+    /**
+     * Get the time of the last fix in the store, or <code>-1</code> if the
+     * store is empty.
+     */
+    public synchronized long getLastTime() {
+        return segments.isEmpty() ? -1 : segments.get(segments.size() - 1).lastTime;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeActiveFile();
+    }
+
+    private void closeActiveFile() throws IOException {
+        if (activeFile != null) {
+            activeFile.close();
+            activeFile = null;
+        }
+    }
+
+    static void write(ByteBuffer buf, Fix f) {
+        buf.putLong(f.time);
+        buf.putDouble(f.latitude);
+        buf.putDouble(f.longitude);
+        buf.putFloat(f.altitude);
+        buf.putFloat(f.speed);
+        buf.putFloat(f.bearing);
+        buf.putFloat(f.accuracy);
+    }
+
+    static void read(ByteBuffer buf, int index, Fix f) {
+        final int pos = index * RECORD_SIZE;
+        f.time = buf.getLong(pos);
+        f.latitude = buf.getDouble(pos + 8);
+        f.longitude = buf.getDouble(pos + 16);
+        f.altitude = buf.getFloat(pos + 24);
+        f.speed = buf.getFloat(pos + 28);
+        f.bearing = buf.getFloat(pos + 32);
+        f.accuracy = buf.getFloat(pos + 36);
+    }
+
+    /**
+     * Segment file.
+     */
+    private static final class Segment {
+        public final File file;
+        public int count;
+        public long firstTime;
+        public long lastTime;
+        private long[] index;
+        private int indexSize;
+
+        public Segment(File file) throws IOException {
+            this.file = file;
+            if (file.exists()) {
+                count = (int) (file.length() / RECORD_SIZE);
+                if (count != 0) {
+                    firstTime = timeAt(0);
+                    lastTime = timeAt(count - 1);
+                }
+            }
+        }
+
+        public void append(long time) {
+            if (count == 0) {
+                firstTime = time;
+            }
+            if (index != null && count % INDEX_INTERVAL == 0) {
+                if (indexSize == index.length) {
+                    index = Arrays.copyOf(index, indexSize * 2);
+                }
+                index[indexSize++] = time;
+            }
+            lastTime = time;
+            count += 1;
+        }
+
+        public ByteBuffer map() throws IOException {
+            final RandomAccessFile f = new RandomAccessFile(file, "r");
+            try {
+                return f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        count * (long) RECORD_SIZE);
+            } finally {
+                f.close();
+            }
+        }
+
+        private long timeAt(int i) throws IOException {
+            final RandomAccessFile f = new RandomAccessFile(file, "r");
+            try {
+                f.seek(i * (long) RECORD_SIZE);
+                return f.readLong();
+            } finally {
+                f.close();
+            }
+        }
+
+        /**
+         * Get the index of the first record whose time is not before a given
+         * time.
+         */
+        public int lowerBound(long time) throws IOException {
+            if (time <= firstTime) {
+                return 0;
+            }
+            if (time > lastTime) {
+                return count;
+            }
+            final ByteBuffer buf = map();
+            if (index == null) {
+                buildIndex(buf);
+            }
+
+            // Find the index block holding this time, then search the block.
+            int lo = 0;
+            int hi = indexSize - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi + 1) >>> 1;
+                if (index[mid] < time) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            int first = lo * INDEX_INTERVAL;
+            int last = Math.min(first + INDEX_INTERVAL, count);
+            while (first < last) {
+                final int mid = (first + last) >>> 1;
+                if (buf.getLong(mid * RECORD_SIZE) < time) {
+                    first = mid + 1;
+                } else {
+                    last = mid;
+                }
+            }
+            return first;
+        }
+
+        private void buildIndex(ByteBuffer buf) {
+            indexSize = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            index = new long[Math.max(indexSize, 16)];
+            for (int i = 0; i < indexSize; ++i) {
+                index[i] = buf.getLong(i * INDEX_INTERVAL * RECORD_SIZE);
+            }
+        }
+    }
+}
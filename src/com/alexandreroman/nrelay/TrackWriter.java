@@ -0,0 +1,204 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Append fixes to a {@link TrackStore} from a background thread.
+ * <p>
+ * The store is opened and closed by the background thread, as opening a store
+ * reads all of its segments. Fixes are copied to a bounded buffer: writing
+ * never blocks the caller on disk I/O. When the buffer is full, fixes are
+ * dropped.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class TrackWriter {
+    private final File dir;
+    private final int maxSegmentRecords;
+    private final Fix[] fixes;
+    private int head;
+    private int count;
+    private long dropped;
+    private Thread writer;
+    private boolean stopping;
+    private volatile TrackStore store;
+    private volatile int segmentCount;
+    private volatile IOException failure;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param dir
+     *            directory holding segment files (see {@link TrackStore})
+     * @param maxSegmentRecords
+     *            how many fixes a segment may hold
+     * @param capacity
+     *            how many fixes may be waiting to be written
+     */
+    public TrackWriter(File dir, int maxSegmentRecords, int capacity) {
+        this.dir = dir;
+        this.maxSegmentRecords = maxSegmentRecords;
+        fixes = new Fix[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            fixes[i] = new Fix();
+        }
+    }
+
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(new Writer(), "NRelay/Track");
+        writer.start();
+    }
+
+    /**
+     * Stop writing. Pending fixes are written, and the store is closed,
+     * before this method returns.
+     */
+    public void stop() {
+        final Thread t;
+        synchronized (this) {
+            t = writer;
+            writer = null;
+            // The thread is not interrupted: an interrupt would close the
+            // file channels of the store.
+            stopping = true;
+            notify();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Write a fix. The fix is copied: this method never blocks.
+     */
+    public synchronized void write(Fix fix) {
+        if (count == fixes.length) {
+            dropped += 1;
+            return;
+        }
+        fixes[(head + count) % fixes.length].set(fix);
+        count += 1;
+        if (count == 1) {
+            notify();
+        }
+    }
+
+    /**
+     * Get the store, or <code>null</code> if it is not open.
+     */
+    public TrackStore getStore() {
+        return store;
+    }
+
+    /**
+     * Get how many segments the store holds, as of the last written fix, or
+     * <code>0</code> if the store is not open yet.
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Get how many fixes were dropped because the writer thread could not
+     * keep up.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Get the last error, if any.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Wait for fixes to write.
+     * 
+     * @return <code>false</code> if the writer is stopping
+     */
+    private synchronized boolean await() {
+        while (count == 0 && !stopping) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !stopping;
+    }
+
+    private synchronized boolean poll(Fix fix) {
+        if (count == 0) {
+            return false;
+        }
+        fix.set(fixes[head]);
+        head = (head + 1) % fixes.length;
+        count -= 1;
+        return true;
+    }
+
+    private class Writer implements Runnable {
+        private final Fix fix = new Fix();
+
+        @Override
+        public void run() {
+            final TrackStore s;
+            try {
+                s = new TrackStore(dir, maxSegmentRecords);
+            } catch (IOException e) {
+                // Fixes are dropped.
+                failure = e;
+                return;
+            }
+            segmentCount = s.getSegmentCount();
+            store = s;
+
+            boolean running = true;
+            while (running) {
+                // Pending fixes are written before stopping.
+                running = await();
+                while (poll(fix)) {
+                    try {
+                        s.append(fix);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    segmentCount = s.getSegmentCount();
+                }
+            }
+
+            store = null;
+            try {
+                s.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+/**
+ * Sentences transformed for destinations, kept while a sentence goes through
+ * the pipeline: destinations with the same {@link TransformProfile} share
+ * the transformed sentence, which is built once.
+ * <p>
+ * This class is not thread-safe: it is only used by the relay worker.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class TransformCache {
+    private final TransformProfile[] profiles;
+    private final NmeaSentence[] outputs;
+    private final boolean[] kept;
+    private int count;
+    private volatile long transformCount;
+    private volatile long sharedCount;
+
+    /**
+     * Create a new instance.
+     * 
+     * @param capacity
+     *            how many profiles may be applied to a single sentence
+     */
+    public TransformCache(int capacity) {
+        profiles = new TransformProfile[capacity];
+        outputs = new NmeaSentence[capacity];
+        kept = new boolean[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            outputs[i] = new NmeaSentence();
+        }
+    }
+
+    /**
+     * Forget transformed sentences: this method is called before a new
+     * sentence goes through destinations.
+     */
+    public void clear() {
+        for (int i = 0; i < count; ++i) {
+            profiles[i] = null;
+        }
+        count = 0;
+    }
+
+    /**
+     * Get a sentence transformed with a profile. The sentence is only
+     * transformed if no other destination used the same profile since the
+     * cache was cleared. The returned sentence must not be modified.
+     * 
+     * @param profile
+     *            profile to apply, or <code>null</code> to get the sentence
+     *            unchanged
+     * @return transformed sentence, or <code>null</code> if the profile drops
+     *         this sentence
+     */
+    public NmeaSentence get(TransformProfile profile, NmeaSentence nmea) {
+        if (profile == null) {
+            return nmea;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (profiles[i] == profile || profiles[i].equals(profile)) {
+                sharedCount += 1;
+                return kept[i] ? outputs[i] : null;
+            }
+        }
+        // When full, the last entry is reused.
+        final int i = count < profiles.length ? count++ : profiles.length - 1;
+        profiles[i] = profile;
+        outputs[i].set(nmea);
+        kept[i] = profile.process(outputs[i]);
+        transformCount += 1;
+        return kept[i] ? outputs[i] : null;
+    }
+
+    /**
+     * Get how many sentences were transformed.
+     */
+    public long getTransformCount() {
+        return transformCount;
+    }
+
+    /**
+     * Get how many times a transformed sentence was shared between
+     * destinations.
+     */
+    public long getSharedCount() {
+        return sharedCount;
+    }
+}
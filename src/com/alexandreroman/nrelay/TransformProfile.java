@@ -0,0 +1,243 @@
+/* 
+ * NMEA relay.
+ * Copyright (c) 2014- Alexandre Roman, alexandre.roman@gmail.com.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.alexandreroman.nrelay;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Transformation profile, adapting sentences to the dialect of a
+ * destination.
+ * <p>
+ * A profile is made of rules, separated with semicolons:
+ * <ul>
+ * <li><code>talker=GP</code>: set the talker of all standard sentences;</li>
+ * <li><code>talker=GN:GP</code>: replace a talker with another one;</li>
+ * <li><code>rename=HDT:HDG</code>: rename a sentence type;</li>
+ * <li><code>trim=RMC:12</code>: only keep the first fields of a sentence
+ * type, such as NMEA 2.3 fields;</li>
+ * <li><code>noproprietary</code>: drop proprietary sentences.</li>
+ * </ul>
+ * Rules refer to sentence types as they were received. Only parametric
+ * sentences (starting with <code>$</code>) are changed: encapsulation
+ * sentences, such as AIS messages, are kept unchanged. Sentences are
+ * transformed in place, without parsing fields: the checksum is updated
+ * with changed bytes only.
+ * 
+ * @author Alexandre Roman <alexandre.roman@gmail.com>
+ */
+final class TransformProfile implements RelayStage {
+    private static final int ANY_TALKER = 0;
+    private final String spec;
+    private final int[] talkerFrom;
+    private final int[] talkerTo;
+    private final int[] renameFrom;
+    private final int[] renameTo;
+    private final int[] trimTypes;
+    private final int[] trimFields;
+    private final boolean dropProprietary;
+
+    private TransformProfile(String spec, int[] talkerFrom, int[] talkerTo, int[] renameFrom,
+            int[] renameTo, int[] trimTypes, int[] trimFields, boolean dropProprietary) {
+        this.spec = spec;
+        this.talkerFrom = talkerFrom;
+        this.talkerTo = talkerTo;
+        this.renameFrom = renameFrom;
+        this.renameTo = renameTo;
+        this.trimTypes = trimTypes;
+        this.trimFields = trimFields;
+        this.dropProprietary = dropProprietary;
+    }
+
+    /**
+     * Parse a profile.
+     * 
+     * @throws IllegalArgumentException
+     *             if the profile is invalid
+     */
+    public static TransformProfile parse(String spec) {
+        final String s = spec.toUpperCase(Locale.ENGLISH);
+        int[] talkerFrom = new int[0];
+        int[] talkerTo = new int[0];
+        int[] renameFrom = new int[0];
+        int[] renameTo = new int[0];
+        int[] trimTypes = new int[0];
+        int[] trimFields = new int[0];
+        boolean dropProprietary = false;
+        // Normalized profile, so that equivalent profiles are equal.
+        final StringBuilder normalized = new StringBuilder(s.length());
+        for (final String r : s.split(";")) {
+            final String rule = r.replace(" ", "");
+            if (rule.length() == 0) {
+                continue;
+            }
+            if (normalized.length() != 0) {
+                normalized.append(';');
+            }
+            normalized.append(rule);
+            if ("NOPROPRIETARY".equals(rule)) {
+                dropProprietary = true;
+                continue;
+            }
+            final int eq = rule.indexOf('=');
+            if (eq == -1) {
+                throw new IllegalArgumentException("Invalid rule: " + rule);
+            }
+            final String name = rule.substring(0, eq);
+            final String value = rule.substring(eq + 1);
+            final int colon = value.indexOf(':');
+            final String from = colon == -1 ? null : value.substring(0, colon);
+            final String to = value.substring(colon + 1);
+            if ("TALKER".equals(name)) {
+                talkerFrom = append(talkerFrom, from == null ? ANY_TALKER : pack(from, 2));
+                talkerTo = append(talkerTo, pack(to, 2));
+            } else if ("RENAME".equals(name) && from != null) {
+                renameFrom = append(renameFrom, pack(from, 3));
+                renameTo = append(renameTo, pack(to, 3));
+            } else if ("TRIM".equals(name) && from != null) {
+                final int fields;
+                try {
+                    fields = Integer.parseInt(to);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid field count: " + rule);
+                }
+                if (fields < 0) {
+                    throw new IllegalArgumentException("Invalid field count: " + rule);
+                }
+                trimTypes = append(trimTypes, pack(from, 3));
+                trimFields = append(trimFields, fields);
+            } else {
+                throw new IllegalArgumentException("Invalid rule: " + rule);
+            }
+        }
+        return new TransformProfile(normalized.toString(), talkerFrom, talkerTo, renameFrom,
+                renameTo, trimTypes, trimFields, dropProprietary);
+    }
+
+    @Override
+    public boolean process(NmeaSentence nmea) {
+        final byte[] d = nmea.data;
+        int len = nmea.length;
+        if (len < 2 || (d[0] != '$' && d[0] != '!')) {
+            return true;
+        }
+        if (d[1] == 'P') {
+            return !dropProprietary;
+        }
+        // Only standard parametric sentences, with a 5-character address, are
+        // changed: encapsulation sentences (such as AIS !AIVDM) are left as
+        // is, so that decoders still recognize them.
+        if (d[0] != '$' || len < 7 || (d[6] != ',' && d[6] != '*')) {
+            return true;
+        }
+        final int talker = (d[1] & 0xff) << 8 | (d[2] & 0xff);
+        final int type = (d[3] & 0xff) << 16 | (d[4] & 0xff) << 8 | (d[5] & 0xff);
+        int delta = 0;
+
+        final int trim = indexOf(trimTypes, type);
+        if (trim != -1) {
+            final int fields = trimFields[trim];
+            final int star = Nmea.checksumIndex(d, len);
+            int end = star;
+            if (end == -1) {
+                end = len;
+                while (end > 7 && (d[end - 1] == '\r' || d[end - 1] == '\n')) {
+                    end -= 1;
+                }
+            }
+            // The address is followed by the first separator.
+            int commas = 0;
+            for (int i = 6; i < end; ++i) {
+                if (d[i] == ',' && ++commas > fields) {
+                    for (int j = i; j < end; ++j) {
+                        delta ^= d[j];
+                    }
+                    System.arraycopy(d, end, d, i, len - end);
+                    len -= end - i;
+                    break;
+                }
+            }
+        }
+
+        for (int i = 0; i < talkerFrom.length; ++i) {
+            if (talkerFrom[i] == ANY_TALKER || talkerFrom[i] == talker) {
+                final int to = talkerTo[i];
+                d[1] = (byte) (to >> 8);
+                d[2] = (byte) to;
+                delta ^= (talker ^ to) >> 8 ^ (talker ^ to);
+                break;
+            }
+        }
+        final int rename = indexOf(renameFrom, type);
+        if (rename != -1) {
+            final int to = renameTo[rename];
+            d[3] = (byte) (to >> 16);
+            d[4] = (byte) (to >> 8);
+            d[5] = (byte) to;
+            delta ^= (type ^ to) >> 16 ^ (type ^ to) >> 8 ^ (type ^ to);
+        }
+
+        nmea.length = len;
+        Nmea.updateChecksum(d, len, delta & 0xff);
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof TransformProfile && spec.equals(((TransformProfile) obj).spec);
+    }
+
+    @Override
+    public int hashCode() {
+        return spec.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    private static int pack(String str, int length) {
+        if (str.length() != length) {
+            throw new IllegalArgumentException("Invalid identifier: " + str);
+        }
+        int v = 0;
+        for (int i = 0; i < length; ++i) {
+            final char c = str.charAt(i);
+            if (c <= ' ' || c > '~' || c == ',' || c == '*') {
+                throw new IllegalArgumentException("Invalid identifier: " + str);
+            }
+            v = v << 8 | c;
+        }
+        return v;
+    }
+
+    private static int[] append(int[] array, int value) {
+        final int[] a = Arrays.copyOf(array, array.length + 1);
+        a[array.length] = value;
+        return a;
+    }
+
+    private static int indexOf(int[] array, int value) {
+        for (int i = 0; i < array.length; ++i) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}